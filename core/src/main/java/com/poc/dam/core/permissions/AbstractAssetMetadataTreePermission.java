@@ -1,27 +1,61 @@
 package com.poc.dam.core.permissions;
 
-import org.apache.jackrabbit.oak.api.Tree;
-import org.apache.jackrabbit.oak.plugins.tree.TreeType;
-import org.apache.jackrabbit.oak.spi.security.authorization.permission.TreePermission;
-import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
 
 import javax.annotation.Nonnull;
 
+/**
+ * Base class of the tree permissions handed out by
+ * {@link AssetMetadataPermissionProvider}. Nothing is readable unless a
+ * subclass says otherwise. Child permissions are derived from the state of the
+ * parent permission rather than by re-classifying the child tree.
+ */
 public abstract class AbstractAssetMetadataTreePermission implements AssetMetadataTreePermission {
 
-    final Tree tree;
-    final TreeType type;
     final AssetMetadataPermissionProvider permissionProvider;
 
-    AbstractAssetMetadataTreePermission(@Nonnull Tree tree, @Nonnull TreeType type, @Nonnull AssetMetadataPermissionProvider permissionProvider) {
-        this.tree = tree;
-        this.type = type;
+    AbstractAssetMetadataTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider) {
         this.permissionProvider = permissionProvider;
     }
-    
-    @Nonnull
+
+    /**
+     * Hidden children and access control content such as {@code rep:policy}
+     * are never evaluated by this provider: child permissions are not
+     * reclassified by tree type, so these children are left to other
+     * providers by name.
+     */
+    static boolean isOutOfScope(@Nonnull String childName) {
+        return NodeStateUtils.isHidden(childName) || childName.startsWith(AssetLocator.REP_PREFIX);
+    }
+
+    @Override
+    public boolean canRead() {
+        return false;
+    }
+
+    @Override
+    public boolean canRead(@Nonnull PropertyState property) {
+        return false;
+    }
+
+    @Override
+    public boolean canReadAll() {
+        return false;
+    }
+
+    @Override
+    public boolean canReadProperties() {
+        return false;
+    }
+
+    @Override
+    public boolean isGranted(long permissions) {
+        return false;
+    }
+
     @Override
-    public TreePermission getChildPermission(@Nonnull String childName, @Nonnull NodeState childState) {
-        return permissionProvider.getTreePermission(tree, type, childName, childState, this);
+    public boolean isGranted(long permissions, @Nonnull PropertyState property) {
+        return false;
     }
 }
@@ -0,0 +1,157 @@
+package com.poc.dam.core.permissions;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.tree.ReadOnly;
+
+/**
+ * Per-provider memo of the {@code dam:Asset} enclosing a given tree, keyed by
+ * tree identity, so the repeated lookups of one call and of one session
+ * resolve each tree once without building its path. Misses are resolved by
+ * {@link AssetLocator}. Read-only trees belong to the root of one revision and
+ * are kept apart from the trees of the session: on a {@code refresh()} that
+ * sees a new revision the former are dropped as a whole, and only the latter
+ * are invalidated below changed paths. Not thread-safe, like the provider that
+ * owns it.
+ */
+final class AncestorAssetCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final Map<TreeKey, Tree> readOnlyEntries;
+    private final Map<TreeKey, Tree> entries;
+    private final AssetMetadataPermissionStats stats;
+
+    private long hits;
+    private long misses;
+
+    AncestorAssetCache(@Nonnull AssetMetadataPermissionStats stats) {
+        this(DEFAULT_MAX_ENTRIES, stats);
+    }
+
+    /**
+     * @param maxEntries the maximum number of read-only trees, and of session
+     *                   trees, that are cached
+     */
+    AncestorAssetCache(final int maxEntries, @Nonnull AssetMetadataPermissionStats stats) {
+        this.stats = stats;
+        this.readOnlyEntries = newLruMap(maxEntries);
+        this.entries = newLruMap(maxEntries);
+    }
+
+    @Nonnull
+    private static Map<TreeKey, Tree> newLruMap(final int maxEntries) {
+        return new LinkedHashMap<TreeKey, Tree>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TreeKey, Tree> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @see AssetLocator#findAncestorAsset(Tree)
+     *
+     * @param tree the tree to resolve
+     * @return the enclosing asset or {@code null}
+     */
+    @CheckForNull
+    Tree findAncestorAsset(@Nonnull Tree tree) {
+        TreeKey key = new TreeKey(tree);
+        Map<TreeKey, Tree> map = tree instanceof ReadOnly ? readOnlyEntries : entries;
+        Tree asset = map.get(key);
+        if (asset != null || map.containsKey(key)) {
+            hits++;
+            stats.recordAncestorCacheHit();
+            return asset;
+        }
+        misses++;
+        stats.recordAncestorCacheMiss();
+
+        asset = AssetLocator.findAncestorAsset(tree);
+        map.put(key, asset);
+        return asset;
+    }
+
+    void clear() {
+        readOnlyEntries.clear();
+        entries.clear();
+    }
+
+    /**
+     * Drops the read-only trees, which belong to the roots of earlier
+     * revisions once the provider moved on to a new one.
+     */
+    void clearReadOnly() {
+        readOnlyEntries.clear();
+    }
+
+    /**
+     * Removes the session trees at or below any of the given paths. Linear in
+     * the number of cached session trees times the number of paths, and builds
+     * the path of each of them.
+     */
+    void invalidate(@Nonnull Collection<String> paths) {
+        entries.keySet().removeIf(key -> {
+            String path = key.tree.getPath();
+            for (String changed : paths) {
+                if (changed.equals(path) || PathUtils.isAncestor(changed, path)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    int size() {
+        return readOnlyEntries.size() + entries.size();
+    }
+
+    long getHitCount() {
+        return hits;
+    }
+
+    long getMissCount() {
+        return misses;
+    }
+
+    double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0d : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AncestorAssetCache[size=%d, hits=%d, misses=%d, hitRate=%.2f]", size(), hits,
+                misses, getHitRate());
+    }
+
+    /**
+     * Compares trees by identity.
+     */
+    private static final class TreeKey {
+
+        private final Tree tree;
+
+        private TreeKey(@Nonnull Tree tree) {
+            this.tree = tree;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tree);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TreeKey && ((TreeKey) obj).tree == tree;
+        }
+    }
+}
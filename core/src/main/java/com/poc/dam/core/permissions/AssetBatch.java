@@ -0,0 +1,71 @@
+package com.poc.dam.core.permissions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+
+/**
+ * The distinct assets of a batch of paths, resolved once by
+ * {@link AssetMetadataPermissionProvider#resolve} and evaluated by any number
+ * of providers of the same configuration, one per principal set. Assets are
+ * kept as node states, so evaluating them needs no tree of the evaluating
+ * provider.
+ */
+final class AssetBatch {
+
+    private final int[] assetIndexes;
+    private final List<NodeState> assets = new ArrayList<>();
+    private final List<ManagedRoot> roots = new ArrayList<>();
+
+    /**
+     * @param size the number of paths
+     */
+    AssetBatch(int size) {
+        this.assetIndexes = new int[size];
+    }
+
+    /**
+     * @return the index of a new asset
+     */
+    int addAsset(@Nonnull NodeState asset, @Nonnull ManagedRoot root) {
+        assets.add(asset);
+        roots.add(root);
+        return assets.size() - 1;
+    }
+
+    /**
+     * @param pathIndex  the index of a path
+     * @param assetIndex the index of its asset, {@code -1} if the path is not
+     *                   in an asset below a managed root
+     */
+    void setAsset(int pathIndex, int assetIndex) {
+        assetIndexes[pathIndex] = assetIndex;
+    }
+
+    int size() {
+        return assetIndexes.length;
+    }
+
+    int getAssetCount() {
+        return assets.size();
+    }
+
+    int getAssetIndex(int pathIndex) {
+        return assetIndexes[pathIndex];
+    }
+
+    @Nonnull
+    NodeState getAsset(int assetIndex) {
+        return assets.get(assetIndex);
+    }
+
+    @Nonnull
+    ManagedRoot getRoot(int assetIndex) {
+        return roots.get(assetIndex);
+    }
+}
@@ -0,0 +1,102 @@
+package com.poc.dam.core.permissions;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
+
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.DamConstants;
+
+/**
+ * Reports the asset level changes between two revisions below the managed
+ * roots. Changed folders are descended, added or removed folders are not: a
+ * changed asset is reported as a whole, and only if its primary type or its
+ * {@code jcr:content/metadata} changed. The children of an asset besides its
+ * {@code jcr:content} are descended like folders, as they may hold nested
+ * assets such as subassets.
+ */
+final class AssetChangeDiff extends DefaultNodeStateDiff {
+
+    /**
+     * Receives the changes found by {@link AssetChangeDiff}.
+     */
+    interface Listener {
+
+        /**
+         * An asset was added, removed, or changed its metadata or type. A
+         * missing side is an empty, non-existing state.
+         */
+        void assetChanged(@Nonnull String path, @Nonnull NodeState before, @Nonnull NodeState after);
+
+        /**
+         * A node that is not an asset was added or removed, together with any
+         * assets below it. A missing side is an empty, non-existing state.
+         */
+        default void folderChanged(@Nonnull String path, @Nonnull NodeState before, @Nonnull NodeState after) {
+        }
+    }
+
+    private final String path;
+    private final Listener listener;
+
+    private AssetChangeDiff(@Nonnull String path, @Nonnull Listener listener) {
+        this.path = path;
+        this.listener = listener;
+    }
+
+    /**
+     * Compares the managed paths of two root states.
+     */
+    static void compare(@Nonnull NodeState before, @Nonnull NodeState after, @Nonnull Collection<String> managedPaths,
+                        @Nonnull Listener listener) {
+        for (String managedPath : managedPaths) {
+            NodeState managedAfter = NodeStateUtils.getNode(after, managedPath);
+            NodeState managedBefore = NodeStateUtils.getNode(before, managedPath);
+            managedAfter.compareAgainstBaseState(managedBefore, new AssetChangeDiff(managedPath, listener));
+        }
+    }
+
+    @Override
+    public boolean childNodeAdded(String name, NodeState after) {
+        return childNodeChanged(name, MISSING_NODE, after);
+    }
+
+    @Override
+    public boolean childNodeChanged(String name, NodeState before, NodeState after) {
+        if (NodeStateUtils.isHidden(name) || !AssetLocator.mayContainAssets(name)) {
+            return true;
+        }
+        String childPath = PathUtils.concat(path, name);
+        boolean wasAsset = AssetLocator.isAsset(before);
+        boolean isAsset = AssetLocator.isAsset(after);
+        if (wasAsset || isAsset) {
+            if (wasAsset != isAsset || !getMetadata(before).equals(getMetadata(after))) {
+                listener.assetChanged(childPath, before, after);
+            }
+            return after.compareAgainstBaseState(before, new AssetChangeDiff(childPath, listener));
+        }
+        if (before.exists() != after.exists()) {
+            // added or removed folders are reported as a whole
+            listener.folderChanged(childPath, before, after);
+            return true;
+        }
+        return after.compareAgainstBaseState(before, new AssetChangeDiff(childPath, listener));
+    }
+
+    @Override
+    public boolean childNodeDeleted(String name, NodeState before) {
+        return childNodeChanged(name, before, MISSING_NODE);
+    }
+
+    @Nonnull
+    private static NodeState getMetadata(@Nonnull NodeState asset) {
+        return asset.getChildNode(JcrConstants.JCR_CONTENT).getChildNode(DamConstants.METADATA_FOLDER);
+    }
+}
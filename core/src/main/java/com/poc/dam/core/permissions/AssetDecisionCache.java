@@ -0,0 +1,238 @@
+package com.poc.dam.core.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+
+/**
+ * Read decisions shared by all permission providers of a configuration. A
+ * decision is keyed by the interned {@link PrincipalContext} of the session, the
+ * managed root the asset was evaluated in, the {@code jcr:uuid} of the asset
+ * and the metadata revision of the asset (the {@code jcr:lastModified} of its
+ * {@code jcr:content}), so an asset whose metadata was updated is evaluated
+ * again, and an asset moved to another managed root is evaluated with the
+ * rules of that root. A decision is the result of
+ * {@link AssetMetadataRules#evaluate}.
+ * <p>
+ * The {@link DecisionSnapshot} of a previous run is only consulted for one
+ * TTL after it was set, and never for assets invalidated since, as the
+ * snapshot itself cannot be updated. While a snapshot file is configured each
+ * decision carries the hash of the properties of the asset's
+ * {@code jcr:content/metadata} that the rules read, see
+ * {@link DecisionSnapshot#hashMetadata}, which is what snapshot records are
+ * validated against: unlike {@code jcr:lastModified} it changes with every
+ * change of these properties, including those made while the instance was
+ * down.
+ * Thread-safe.
+ */
+final class AssetDecisionCache {
+
+    private final Cache<Key, Entry> decisions;
+    private final long ttlNanos;
+    private final Set<String> invalidatedAssetIds = ConcurrentHashMap.newKeySet();
+    private volatile DecisionSnapshot snapshot;
+    private volatile long snapshotExpiry;
+    private volatile boolean snapshotEnabled;
+
+    AssetDecisionCache(long maxSize, long ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.decisions = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Falls back to the snapshot of a previous run, if any, and keeps its
+     * decisions that are still current.
+     *
+     * @param metadataHash computes the hash of the asset's metadata, only
+     *                     called for a snapshot lookup
+     */
+    @CheckForNull
+    Long getDecision(@Nonnull PrincipalContext principals, @Nonnull ManagedRoot root, @Nonnull String assetId,
+                     @Nullable String revision, @Nonnull LongSupplier metadataHash) {
+        Key key = new Key(principals, root, assetId, revision);
+        Entry entry = decisions.getIfPresent(key);
+        if (entry != null) {
+            return entry.decision;
+        }
+        DecisionSnapshot current = getSnapshot();
+        if (current == null || invalidatedAssetIds.contains(assetId)) {
+            return null;
+        }
+        int record = current.find(principals, root.getPath(), assetId);
+        if (record < 0) {
+            return null;
+        }
+        long hash = metadataHash.getAsLong();
+        Long decision = current.getDecision(record, hash);
+        if (decision != null) {
+            decisions.put(key, new Entry(decision, hash));
+        }
+        return decision;
+    }
+
+    /**
+     * @param metadataHash computes the hash of the asset's metadata, only
+     *                     called while a snapshot file is configured
+     */
+    void putDecision(@Nonnull PrincipalContext principals, @Nonnull ManagedRoot root, @Nonnull String assetId,
+                     @Nullable String revision, long decision, @Nonnull LongSupplier metadataHash) {
+        decisions.put(new Key(principals, root, assetId, revision),
+                new Entry(decision, snapshotEnabled ? metadataHash.getAsLong() : 0));
+    }
+
+    /**
+     * Evicts the decisions of the given assets for all principals and
+     * revisions, and keeps the snapshot from answering for them. Linear in the
+     * size of the cache, so callers should batch.
+     */
+    void invalidateAssets(@Nonnull Set<String> assetIds) {
+        if (snapshot != null) {
+            invalidatedAssetIds.addAll(assetIds);
+        }
+        decisions.asMap().keySet().removeIf(key -> assetIds.contains(key.assetId));
+    }
+
+    void invalidateAll() {
+        decisions.invalidateAll();
+        dropSnapshot();
+    }
+
+    /**
+     * Sets the snapshot of a previous run, consulted for one TTL from now,
+     * and makes decisions carry the hash of the metadata they were taken
+     * from, so they can be written to a snapshot.
+     *
+     * @param snapshot the snapshot of a previous run, {@code null} for none
+     */
+    void setSnapshot(@Nullable DecisionSnapshot snapshot) {
+        snapshotEnabled = true;
+        invalidatedAssetIds.clear();
+        snapshotExpiry = System.nanoTime() + ttlNanos;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the snapshot, or {@code null} if there is none or it expired
+     */
+    @CheckForNull
+    private DecisionSnapshot getSnapshot() {
+        DecisionSnapshot current = snapshot;
+        if (current != null && System.nanoTime() - snapshotExpiry > 0) {
+            // decisions of the previous run would have expired by now
+            dropSnapshot();
+            return null;
+        }
+        return current;
+    }
+
+    private void dropSnapshot() {
+        snapshot = null;
+        invalidatedAssetIds.clear();
+    }
+
+    /**
+     * Writes the cached decisions to a snapshot file.
+     *
+     * @param fingerprint the fingerprint of the configuration the decisions
+     *                    were taken with
+     */
+    void writeSnapshot(@Nonnull File file, long fingerprint) throws IOException {
+        Map<Key, Entry> entries = decisions.asMap();
+        DecisionSnapshot.Writer writer = new DecisionSnapshot.Writer(entries.size(), fingerprint);
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            Key key = entry.getKey();
+            Entry value = entry.getValue();
+            writer.add(key.principals, key.root.getPath(), key.assetId, value.metadataHash, value.decision);
+        }
+        writer.write(file);
+    }
+
+    long size() {
+        return decisions.size();
+    }
+
+    @Nonnull
+    CacheStats stats() {
+        return decisions.stats();
+    }
+
+    @Override
+    public String toString() {
+        return "AssetDecisionCache[size=" + size() + ", " + stats() + "]";
+    }
+
+    /**
+     * A decision and the hash of the metadata it was taken from, {@code 0} if
+     * unknown.
+     */
+    private static final class Entry {
+
+        private final long decision;
+        private final long metadataHash;
+
+        private Entry(long decision, long metadataHash) {
+            this.decision = decision;
+            this.metadataHash = metadataHash;
+        }
+    }
+
+    /**
+     * Principal contexts are interned and managed roots belong to the
+     * configuration of this cache, so both are compared by identity.
+     */
+    private static final class Key {
+
+        private final PrincipalContext principals;
+        private final ManagedRoot root;
+        private final String assetId;
+        private final String revision;
+        private final int hash;
+
+        private Key(@Nonnull PrincipalContext principals, @Nonnull ManagedRoot root, @Nonnull String assetId,
+                    @Nullable String revision) {
+            this.principals = principals;
+            this.root = root;
+            this.assetId = assetId;
+            this.revision = revision;
+            this.hash = Objects.hash(principals.getId(), System.identityHashCode(root), assetId, revision);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && principals == other.principals && root == other.root
+                    && assetId.equals(other.assetId)
+                    && Objects.equals(revision, other.revision);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.poc.dam.core.permissions;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.security.principal.PrincipalImpl;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.DamConstants;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+/**
+ * Fills the decision cache of a freshly compiled configuration with the
+ * decisions of hot assets for the common principal sets, so the first
+ * requests after a restart or a configuration change do not all evaluate
+ * metadata. The configured paths are assets or folders; folders are walked
+ * depth first until the configured number of assets is reached. Decisions
+ * already in the cache are kept. Runs in the background and stops when
+ * interrupted; the per-session ancestor caches cannot be warmed.
+ */
+final class AssetDecisionWarmup implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssetDecisionWarmup.class);
+
+    private final NodeStore nodeStore;
+    private final CompiledConfiguration configuration;
+    private final AssetDecisionCache decisionCache;
+    private final String[] paths;
+    private final List<PrincipalContext> principalContexts;
+    private final int maxAssets;
+
+    private int assets;
+
+    /**
+     * @param paths         the paths of hot assets or folders
+     * @param principalSets the principal sets to warm, each a comma separated
+     *                      list of principal names
+     * @param maxAssets     the maximum number of assets to warm
+     */
+    AssetDecisionWarmup(@Nonnull NodeStore nodeStore, @Nonnull CompiledConfiguration configuration,
+                        @Nonnull AssetDecisionCache decisionCache, @Nonnull String[] paths,
+                        @Nonnull String[] principalSets, int maxAssets) {
+        this.nodeStore = nodeStore;
+        this.configuration = configuration;
+        this.decisionCache = decisionCache;
+        this.paths = paths;
+        this.principalContexts = intern(configuration.getPrincipalContexts(), principalSets);
+        this.maxAssets = maxAssets;
+    }
+
+    @Override
+    public void run() {
+        if (principalContexts.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        NodeState rootState = nodeStore.getRoot();
+        for (String path : paths) {
+            if (StringUtils.isBlank(path)) {
+                continue;
+            }
+            Node node = classify(path.trim());
+            if (node == null || !node.isManaged()) {
+                LOG.warn("Ignoring warm-up path {} outside of the managed roots", path);
+                continue;
+            }
+            warm(NodeStateUtils.getNode(rootState, path.trim()), node.getRoot());
+            if (assets >= maxAssets || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        LOG.info("Decision cache warm-up finished: {} assets for {} principal sets in {} ms", assets,
+                principalContexts.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Logs the warmed principal sets no session had while the configuration
+     * was applied, as their decisions were never used. Called when the
+     * configuration is replaced or deactivated.
+     */
+    void logUnseenPrincipalSets() {
+        for (PrincipalContext principals : principalContexts) {
+            if (!principals.isSeen()) {
+                LOG.info("Warm-up principal set {} was not seen in any session, a set has to list all principals "
+                        + "of a session, e.g. 'anonymous,everyone'", principals.getPrincipalNames());
+            }
+        }
+    }
+
+    /**
+     * Evaluates an asset, or the assets below a folder.
+     */
+    private void warm(@Nonnull NodeState state, @Nonnull ManagedRoot root) {
+        if (AssetLocator.isAsset(state)) {
+            evaluate(state, root);
+            return;
+        }
+        for (ChildNodeEntry entry : state.getChildNodeEntries()) {
+            if (assets >= maxAssets || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            String name = entry.getName();
+            if (!NodeStateUtils.isHidden(name) && AssetLocator.mayContainAssets(name)) {
+                warm(entry.getNodeState(), root);
+            }
+        }
+    }
+
+    /**
+     * Puts the decisions of an asset for all principal sets, keyed like the
+     * decisions of {@link AssetMetadataPermissionProvider}.
+     */
+    private void evaluate(@Nonnull NodeState asset, @Nonnull ManagedRoot root) {
+        PropertyState assetId = asset.getProperty(JcrConstants.JCR_UUID);
+        if (assetId == null) {
+            // only referenceable assets are cached
+            return;
+        }
+        assets++;
+        NodeState content = asset.getChildNode(JcrConstants.JCR_CONTENT);
+        NodeState metadata = content.getChildNode(DamConstants.METADATA_FOLDER);
+        PropertyState revision = content.getProperty(JcrConstants.JCR_LASTMODIFIED);
+        String id = assetId.getValue(Type.STRING);
+        String rev = revision == null ? null : revision.getValue(Type.STRING);
+        // shared by all principal sets
+        long hash = DecisionSnapshot.hashMetadata(metadata::getProperty, root.getRules().getPropertyNames());
+        LongSupplier metadataHash = () -> hash;
+        for (PrincipalContext principals : principalContexts) {
+            if (decisionCache.getDecision(principals, root, id, rev, metadataHash) == null) {
+                decisionCache.putDecision(principals, root, id, rev,
+                        root.getRules().evaluate(metadata::getProperty, principals.getPrincipalNames()), metadataHash);
+            }
+        }
+    }
+
+    @CheckForNull
+    private Node classify(@Nonnull String path) {
+        Node node = configuration.getManagedPaths().getRootNode();
+        for (String name : PathUtils.elements(path)) {
+            if (node == null) {
+                break;
+            }
+            node = node.getChild(name);
+        }
+        return node;
+    }
+
+    @Nonnull
+    private static List<PrincipalContext> intern(@Nonnull PrincipalContexts contexts, @Nonnull String[] principalSets) {
+        List<PrincipalContext> interned = new ArrayList<>(principalSets.length);
+        for (String principalSet : principalSets) {
+            Set<Principal> principals = new HashSet<>();
+            for (String name : StringUtils.split(StringUtils.defaultString(principalSet), ',')) {
+                if (StringUtils.isNotBlank(name)) {
+                    principals.add(new PrincipalImpl(name.trim()));
+                }
+            }
+            if (principals.isEmpty()) {
+                continue;
+            }
+            PrincipalContext context = contexts.intern(principals);
+            if (!context.isAdminOrSystem()) {
+                interned.add(context);
+            }
+        }
+        return interned;
+    }
+}
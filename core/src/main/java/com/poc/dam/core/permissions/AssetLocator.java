@@ -0,0 +1,78 @@
+package com.poc.dam.core.permissions;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.day.cq.commons.jcr.JcrConstants;
+
+/**
+ * Locates assets from the structure of the DAM instead of from paths. An asset
+ * keeps all of its content below its {@code jcr:content} child and no asset
+ * lives inside a {@code jcr:content} subtree, so:
+ * <ul>
+ * <li>a node named {@code jcr:content} is never an asset,</li>
+ * <li>the asset of any other node is the parent of its nearest
+ * {@code jcr:content} ancestor, if that parent is an asset.</li>
+ * </ul>
+ * Walking up only compares names; the primary type is read once per candidate.
+ */
+final class AssetLocator {
+
+    static final String NT_DAM_ASSET = "dam:Asset";
+
+    static final String REP_PREFIX = "rep:";
+
+    private AssetLocator() {
+    }
+
+    static boolean isAsset(@Nonnull Tree tree) {
+        PropertyState primaryType = tree.getProperty(JcrConstants.JCR_PRIMARYTYPE);
+        return primaryType != null && NT_DAM_ASSET.equals(primaryType.getValue(Type.NAME));
+    }
+
+    static boolean isAsset(@Nonnull NodeState state) {
+        return NT_DAM_ASSET.equals(state.getName(JcrConstants.JCR_PRIMARYTYPE));
+    }
+
+    /**
+     * Same as {@link #isAsset(NodeState)} for a child reached by name, which
+     * skips the primary type read for {@code jcr:content} nodes.
+     */
+    static boolean isAsset(@Nonnull String name, @Nonnull NodeState state) {
+        return !JcrConstants.JCR_CONTENT.equals(name) && isAsset(state);
+    }
+
+    /**
+     * @return {@code false} for children that never contain assets: the
+     *         {@code jcr:content} of a folder and access control content
+     */
+    static boolean mayContainAssets(@Nonnull String name) {
+        return !JcrConstants.JCR_CONTENT.equals(name) && !name.startsWith(REP_PREFIX);
+    }
+
+    /**
+     * @param tree the tree to resolve
+     * @return the tree itself if it is an asset, otherwise the asset whose
+     *         {@code jcr:content} contains the tree, or {@code null}
+     */
+    @CheckForNull
+    static Tree findAncestorAsset(@Nonnull Tree tree) {
+        if (!JcrConstants.JCR_CONTENT.equals(tree.getName()) && isAsset(tree)) {
+            return tree;
+        }
+        Tree current = tree;
+        while (!current.isRoot()) {
+            Tree parent = current.getParent();
+            if (JcrConstants.JCR_CONTENT.equals(current.getName()) && isAsset(parent)) {
+                return parent;
+            }
+            current = parent;
+        }
+        return null;
+    }
+}
@@ -2,28 +2,43 @@ package com.poc.dam.core.permissions;
 
 import static org.apache.jackrabbit.oak.spi.security.RegistrationConstants.OAK_SECURITY_NAME;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.jcr.security.AccessControlManager;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.jackrabbit.oak.api.Root;
 import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.apache.jackrabbit.oak.spi.commit.BackgroundObserver;
+import org.apache.jackrabbit.oak.spi.commit.CommitHook;
+import org.apache.jackrabbit.oak.spi.commit.EditorHook;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
 import org.apache.jackrabbit.oak.spi.security.ConfigurationBase;
 import org.apache.jackrabbit.oak.spi.security.SecurityConfiguration;
 import org.apache.jackrabbit.oak.spi.security.authorization.AuthorizationConfiguration;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.EmptyPermissionProvider;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.PermissionProvider;
 import org.apache.jackrabbit.oak.spi.security.authorization.restriction.RestrictionProvider;
-import org.apache.jackrabbit.oak.spi.security.principal.AdminPrincipal;
-import org.apache.jackrabbit.oak.spi.security.principal.SystemPrincipal;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
@@ -44,16 +59,95 @@ public class AssetMetadataAuthorizationConfiguration extends ConfigurationBase i
 
 		@AttributeDefinition(name = "Publish Administrative User IDs for POC Permission Provider", description = "Comma seperated list of Users to be considered as Admins. These will bypass the permissions provider checks.")
 		String adminUserIds();
+
+		@AttributeDefinition(name = "Managed roots", description = "Paths below which assets are readable according to the metadata rules.")
+		String[] managedRoots() default { "/content/dam/poc" };
+
+		@AttributeDefinition(name = "Metadata rules", description = "Rules granting read access to assets below the managed roots based on their metadata. An asset is readable if any rule matches. "
+				+ "Conditions of a rule are joined with '&&' and are one of '<property> in principals', '<property> == <value>' or 'principal == <name>', "
+				+ "e.g. 'dam:cugGroups in principals' or 'dam:status == approved && principal == poc-partners'. "
+				+ "A rule ending with 'masking <property>, <property>' grants the asset without these properties of its jcr:content/metadata, a property is hidden if every matching rule masks it. "
+				+ "A rule prefixed with '<managed root>|' only applies to that root, e.g. '/content/dam/tenant-a|dam:cugGroups in principals'.")
+		String[] metadataRules() default {};
+
+		@AttributeDefinition(name = "Decision cache enabled", description = "Share asset read decisions between sessions with the same principals.")
+		boolean decisionCacheEnabled() default true;
+
+		@AttributeDefinition(name = "Decision cache size", description = "Maximum number of cached decisions.")
+		long decisionCacheSize() default 10000;
+
+		@AttributeDefinition(name = "Decision cache TTL", description = "Seconds after which a cached decision is evaluated again.")
+		long decisionCacheTtl() default 300;
+
+		@AttributeDefinition(name = "Reader tags enabled", description = "Answer read checks from the readers materialized on each asset by a commit hook, "
+				+ "and tag existing assets in the background on activation; read checks use the tags once that job has finished. "
+				+ "Only used on publish, and only if no rule has more than one principal condition.")
+		boolean readerTagsEnabled() default false;
+
+		@AttributeDefinition(name = "Warm-up paths", description = "Hot assets or folders whose decisions are put into the decision cache in the background "
+				+ "after activation and after each configuration change.")
+		String[] warmupPaths() default {};
+
+		@AttributeDefinition(name = "Warm-up principal sets", description = "Principal sets to warm the decisions for, each a comma separated list of all principal names of a session, "
+				+ "e.g. 'anonymous,everyone' for anonymous sessions.")
+		String[] warmupPrincipalSets() default {};
+
+		@AttributeDefinition(name = "Warm-up asset limit", description = "Maximum number of assets evaluated by a warm-up.")
+		int warmupMaxAssets() default 10000;
+
+		@AttributeDefinition(name = "Trace sample rate", description = "Record one in this many asset decisions in the decision trace, shown by the AssetMetadataPermissionStats MBean. 0 disables tracing.")
+		int traceSampleRate() default 0;
+
+		@AttributeDefinition(name = "Trace buffer size", description = "Number of most recent decisions kept in the decision trace.")
+		int traceBufferSize() default 1024;
+
+		@AttributeDefinition(name = "Trace path prefix", description = "Only trace assets at or below this path, empty for all assets. "
+				+ "Decisions taken while traversing are only known by managed root and jcr:uuid, and are only traced if the prefix is at or above their managed root.")
+		String tracePathPrefix() default "";
+
+		@AttributeDefinition(name = "Trace principal", description = "Only trace sessions with this principal, empty for all sessions.")
+		String tracePrincipalName() default "";
+
+		@AttributeDefinition(name = "Decision snapshot file", description = "Local file the decision cache is written to on deactivation and mapped from on activation, "
+				+ "so a restarted instance starts with the decisions of its previous run, for one decision cache TTL and only for assets whose metadata is unchanged. "
+				+ "Empty disables the snapshot.")
+		String decisionSnapshotFile() default "";
 	}
 
-	private Set<String> adminUserIds;
+	private volatile CompiledConfiguration configuration = CompiledConfiguration.EMPTY;
+
+	private BundleContext bundleContext;
+
+	private static final int OBSERVER_QUEUE_LENGTH = 1000;
+
+	private ExecutorService observerExecutor;
+
+	private BackgroundObserver metadataObserver;
+
+	private ServiceRegistration<Observer> metadataObserverRegistration;
+
+	private AssetMetadataPermissionStats stats;
+
+	private ServiceRegistration<AssetMetadataPermissionStatsMBean> statsRegistration;
+
+	private ExecutorService readerTagExecutor;
+
+	private ExecutorService warmupExecutor;
+
+	private File snapshotFile;
+
+	private Config config;
+
+	private AssetDecisionWarmup warmup;
+
+	private volatile NodeStore nodeStore;
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(AssetMetadataAuthorizationConfiguration.class);
 
 	@Override
 	public AccessControlManager getAccessControlManager(@NotNull Root root, @NotNull NamePathMapper namePathMapper) {
 		// Return a dummy access control manager
-		return new AssetMetadataDummyAccessControlManager(root, namePathMapper, getSecurityProvider());
+		return new AssetMetadataDummyAccessControlManager(root, namePathMapper, getSecurityProvider(), this);
 	}
 
 	@Override
@@ -62,17 +156,29 @@ public class AssetMetadataAuthorizationConfiguration extends ConfigurationBase i
 
 		if (ModeUtil.isPublish()) {
 
-			if (isAdminOrSystem(principals)) {
+			CompiledConfiguration compiled = configuration;
+			PrincipalContext principalContext = compiled.getPrincipalContexts().intern(principals);
+			if (principalContext.isAdminOrSystem()) {
 				return EmptyPermissionProvider.getInstance(); // handled by another module
 			}
+			principalContext.setSeen();
 
 			return new AssetMetadataPermissionProvider(root, getRootProvider(), getTreeProvider(), getContext(),
-					principals);
+					principalContext, compiled, stats);
 		}
 
 		return EmptyPermissionProvider.getInstance();
 	}
 
+	@Override
+	public @NotNull List<? extends CommitHook> getCommitHooks(@NotNull String workspaceName) {
+		if (!ModeUtil.isPublish()) {
+			return Collections.emptyList();
+		}
+		// the editor is skipped while reader tags are disabled, the reader tag job catches up on enabling them
+		return Collections.singletonList(new EditorHook(new AssetReaderTagEditorProvider(() -> configuration)));
+	}
+
 	@Override
 	public @NotNull RestrictionProvider getRestrictionProvider() {
 		return RestrictionProvider.EMPTY;
@@ -85,24 +191,155 @@ public class AssetMetadataAuthorizationConfiguration extends ConfigurationBase i
 	}
 
 	@Activate
-	public void activate(final Config config) {
-
-		adminUserIds = new HashSet<>();
-		if (config.adminUserIds() != null) {
-			adminUserIds = new HashSet<>(Arrays.asList(config.adminUserIds().split(",")));
-		}
-		LOGGER.info("admin user IDs: {}", adminUserIds);
-
-	private boolean isAdminOrSystem(Set<Principal> principals) {
-		if (principals.contains(SystemPrincipal.INSTANCE)) {
-			return true;
-		} else {
-			for (Principal principal : principals) {
-				if (principal instanceof AdminPrincipal || adminUserIds.contains(principal.getName())) {
-					return true;
-				}
+	public void activate(final Config config, final BundleContext bundleContext) {
+
+		this.bundleContext = bundleContext;
+		CompiledConfiguration compiled = CompiledConfiguration.compile(config);
+
+		stats = new AssetMetadataPermissionStats(compiled.getManagedPaths().getManagedRoots(),
+				compiled.getDecisionCache(), compiled.getTracer());
+		Hashtable<String, Object> statsProperties = new Hashtable<>();
+		statsProperties.put("jmx.objectname",
+				"com.poc.dam:type=" + AssetMetadataPermissionStatsMBean.TYPE + ",name=AssetMetadataPermissionProvider");
+		statsRegistration = bundleContext.registerService(AssetMetadataPermissionStatsMBean.class, stats,
+				statsProperties);
+
+		apply(compiled, config);
+	}
+
+	/**
+	 * Swaps in a new snapshot without restarting the component, which would
+	 * re-register the whole security provider composite.
+	 */
+	@Modified
+	public void modified(final Config config) {
+
+		CompiledConfiguration compiled = CompiledConfiguration.compile(config);
+		stats.update(compiled.getManagedPaths().getManagedRoots(), compiled.getDecisionCache(),
+				compiled.getTracer());
+		apply(compiled, config);
+	}
+
+	/**
+	 * Starts the reader tag job and the warm-up that were skipped because no
+	 * node store was bound when the configuration was applied.
+	 */
+	@Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+	protected synchronized void bindNodeStore(NodeStore nodeStore) {
+
+		this.nodeStore = nodeStore;
+		if (config != null && readerTagExecutor == null && warmupExecutor == null) {
+			LOGGER.info("Node store bound, starting pending background tasks");
+			startStoreTasks(configuration, config, nodeStore);
+		}
+	}
+
+	protected synchronized void unbindNodeStore(NodeStore nodeStore) {
+
+		if (this.nodeStore == nodeStore) {
+			this.nodeStore = null;
+		}
+	}
+
+	@Deactivate
+	public synchronized void deactivate() {
+
+		CompiledConfiguration compiled = configuration;
+		AssetDecisionCache decisionCache = compiled.getDecisionCache();
+		if (snapshotFile != null && decisionCache != null) {
+			try {
+				decisionCache.writeSnapshot(snapshotFile, compiled.getFingerprint());
+			} catch (IOException e) {
+				LOGGER.warn("Failed to write decision snapshot {}", snapshotFile, e);
 			}
-			return false;
+		}
+
+		if (statsRegistration != null) {
+			statsRegistration.unregister();
+			statsRegistration = null;
+		}
+		stopBackgroundTasks();
+		config = null;
+		bundleContext = null;
+	}
+
+	private synchronized void apply(CompiledConfiguration compiled, Config config) {
+
+		LOGGER.info("applying {}", compiled);
+		stopBackgroundTasks();
+		configuration = compiled;
+		this.config = config;
+
+		AssetDecisionCache decisionCache = compiled.getDecisionCache();
+		snapshotFile = StringUtils.isBlank(config.decisionSnapshotFile()) ? null
+				: new File(config.decisionSnapshotFile().trim());
+		if (decisionCache != null && snapshotFile != null) {
+			// only maps the file, records are read and checked against the asset's metadata hash on lookup
+			decisionCache.setSnapshot(DecisionSnapshot.open(snapshotFile, compiled.getFingerprint()));
+		}
+		if (decisionCache != null) {
+			// evict decisions of assets changed by replication, coalescing bursts of commits
+			observerExecutor = Executors.newSingleThreadExecutor();
+			metadataObserver = new BackgroundObserver(
+					new AssetMetadataObserver(decisionCache, compiled.getManagedPaths().getManagedRootPaths()),
+					observerExecutor, OBSERVER_QUEUE_LENGTH);
+			metadataObserverRegistration = bundleContext.registerService(Observer.class, metadataObserver, null);
+		}
+
+		NodeStore store = nodeStore;
+		if (store != null) {
+			startStoreTasks(compiled, config, store);
+		} else if (compiled.isReaderTags() || isWarmup(compiled, config)) {
+			LOGGER.info("No node store available, the reader tag job and the warm-up start once it is bound");
+		}
+	}
+
+	private void startStoreTasks(CompiledConfiguration compiled, Config config, NodeStore store) {
+
+		if (compiled.isReaderTags()) {
+			readerTagExecutor = Executors.newSingleThreadExecutor();
+			readerTagExecutor.execute(new AssetReaderTagJob(store, compiled, stats));
+		}
+		if (isWarmup(compiled, config)) {
+			// never blocks activation, the first requests may still evaluate hot assets themselves
+			warmup = new AssetDecisionWarmup(store, compiled, compiled.getDecisionCache(), config.warmupPaths(),
+					config.warmupPrincipalSets(), config.warmupMaxAssets());
+			warmupExecutor = Executors.newSingleThreadExecutor();
+			warmupExecutor.execute(warmup);
+		}
+	}
+
+	private static boolean isWarmup(CompiledConfiguration compiled, Config config) {
+		String[] warmupPaths = config.warmupPaths();
+		return compiled.getDecisionCache() != null && warmupPaths != null && warmupPaths.length > 0
+				&& config.warmupPrincipalSets() != null;
+	}
+
+	private synchronized void stopBackgroundTasks() {
+
+		if (metadataObserverRegistration != null) {
+			metadataObserverRegistration.unregister();
+			metadataObserverRegistration = null;
+		}
+		if (metadataObserver != null) {
+			metadataObserver.close();
+			metadataObserver = null;
+		}
+		if (observerExecutor != null) {
+			observerExecutor.shutdown();
+			observerExecutor = null;
+		}
+		if (readerTagExecutor != null) {
+			readerTagExecutor.shutdownNow();
+			readerTagExecutor = null;
+		}
+		if (warmupExecutor != null) {
+			warmupExecutor.shutdownNow();
+			warmupExecutor = null;
+		}
+		if (warmup != null) {
+			warmup.logUnseenPrincipalSets();
+			warmup = null;
 		}
 	}
 }
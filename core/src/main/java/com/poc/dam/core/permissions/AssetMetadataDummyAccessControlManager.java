@@ -1,9 +1,14 @@
 package com.poc.dam.core.permissions;
 
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -33,29 +38,52 @@ import org.apache.jackrabbit.oak.spi.security.authorization.permission.Permissio
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.Permissions;
 import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeConfiguration;
 
+import com.google.common.collect.ImmutableSet;
+
 
 public class AssetMetadataDummyAccessControlManager implements AccessControlManager {
 
+    /**
+     * Maximum number of permission providers kept for principal sets other
+     * than the session's.
+     */
+    private static final int MAX_PROVIDERS = 64;
+
     private final Root root;
     private final String workspaceName;
     private final NamePathMapper namePathMapper;
     
     private final AuthorizationConfiguration config;
+    private final AssetMetadataAuthorizationConfiguration assetConfig;
     private final PrivilegeManager privilegeManager;
     private PermissionProvider permissionProvider;
     
     private boolean doRefresh = false;
+
+    /**
+     * Composite providers of other principal sets, least recently used first.
+     * Like the session, an access control manager is not used concurrently.
+     */
+    private final Map<Set<Principal>, PermissionProvider> providers = newProviderCache();
+
+    /**
+     * Providers of this module for principal sets, least recently used first.
+     */
+    private final Map<Set<Principal>, PermissionProvider> assetProviders = newProviderCache();
     
     public AssetMetadataDummyAccessControlManager (@Nonnull Root root,
              @Nonnull NamePathMapper namePathMapper,
-            @Nonnull SecurityProvider securityProvider)  {
+            @Nonnull SecurityProvider securityProvider,
+            @Nonnull AssetMetadataAuthorizationConfiguration assetConfig)  {
         
         this.root = root;
         this.workspaceName = root.getContentSession().getWorkspaceName();
         this.namePathMapper = namePathMapper;
 
         privilegeManager = securityProvider.getConfiguration(PrivilegeConfiguration.class).getPrivilegeManager(root, namePathMapper);
+        // the composite of all authorization modules
         config = securityProvider.getConfiguration(AuthorizationConfiguration.class);
+        this.assetConfig = assetConfig;
         
     }
     
@@ -161,13 +189,102 @@ public class AssetMetadataDummyAccessControlManager implements AccessControlMana
         }
     }
     
+    /**
+     * Evaluates {@link #hasPrivileges(String, Privilege[])} for many paths with a
+     * single refresh of the permission provider. When only read privileges are
+     * checked, the paths are first evaluated by this module's
+     * {@link AssetMetadataPermissionProvider} with the paths grouped by asset,
+     * so every distinct asset is evaluated once; the other modules are only
+     * asked for the paths it does not grant. Paths that do not exist are
+     * reported as not granted;
+     * without privileges, like {@link #hasPrivileges(String, Privilege[])},
+     * every existing path is reported as granted.
+     *
+     * @param absPaths   the JCR paths to evaluate
+     * @param privileges the privileges to check
+     * @return a bit set with bit {@code i} set if the privileges are granted on
+     *         {@code absPaths.get(i)}
+     */
+    @Nonnull
+    public BitSet hasPrivileges(@Nonnull List<String> absPaths, @Nullable Privilege[] privileges) throws RepositoryException {
+        return hasPrivileges(absPaths, Collections.singletonList(getPrincipals()), privileges)[0];
+    }
+
+    /**
+     * Evaluates {@link #hasPrivileges(String, Privilege[])} for many paths and
+     * many principal sets, e.g. to report who can see a set of assets. The
+     * paths are resolved once and shared by all principal sets; for read
+     * privileges each distinct asset is resolved once and evaluated once per
+     * principal set by this module. As the modules are combined with OR, a
+     * path granted by this module is granted; only the others are evaluated
+     * by the composite provider. Providers of principal sets other than the
+     * session's are kept for later calls.
+     *
+     * @param absPaths      the JCR paths to evaluate
+     * @param principalSets the principal sets to evaluate
+     * @param privileges    the privileges to check
+     * @return one bit set per principal set, with bit {@code i} set if the
+     *         privileges are granted on {@code absPaths.get(i)}
+     */
+    @Nonnull
+    public BitSet[] hasPrivileges(@Nonnull List<String> absPaths, @Nonnull List<Set<Principal>> principalSets,
+                                  @Nullable Privilege[] privileges) throws RepositoryException {
+        List<String> oakPaths = new ArrayList<>(absPaths.size());
+        for (String absPath : absPaths) {
+            oakPaths.add(getOakPath(absPath));
+        }
+        String[] privilegeNames;
+        if (privileges == null || privileges.length == 0) {
+            privilegeNames = null;
+        } else {
+            String[] jcrNames = Arrays.stream(privileges).filter(Objects::nonNull).map(Privilege::getName)
+                    .toArray(String[]::new);
+            privilegeNames = getOakNames(jcrNames, namePathMapper).toArray(new String[0]);
+        }
+        boolean readOnly = privilegeNames != null && AssetMetadataPermissionProvider.READ_PRIVILEGE_NAMES.containsAll(Arrays.asList(privilegeNames));
+
+        BitSet[] granted = new BitSet[principalSets.size()];
+        AssetBatch batch = null;
+        Tree[] trees = null;
+        for (int i = 0; i < granted.length; i++) {
+            BitSet assetGranted = null;
+            if (readOnly) {
+                PermissionProvider assetProvider = getAssetPermissionProvider(principalSets.get(i));
+                if (assetProvider instanceof AssetMetadataPermissionProvider) {
+                    if (batch == null) {
+                        batch = ((AssetMetadataPermissionProvider) assetProvider).resolve(oakPaths);
+                    }
+                    assetGranted = ((AssetMetadataPermissionProvider) assetProvider).isGranted(batch);
+                    if (assetGranted.cardinality() == oakPaths.size()) {
+                        granted[i] = assetGranted;
+                        continue;
+                    }
+                }
+            }
+            if (trees == null) {
+                trees = new Tree[oakPaths.size()];
+                for (int j = 0; j < trees.length; j++) {
+                    trees[j] = root.getTree(oakPaths.get(j));
+                }
+            }
+            PermissionProvider provider = getPermissionProvider(principalSets.get(i));
+            granted[i] = new BitSet(trees.length);
+            for (int j = 0; j < trees.length; j++) {
+                if (trees[j].exists() && ((assetGranted != null && assetGranted.get(j)) || privilegeNames == null
+                        || provider.hasPrivileges(trees[j], privilegeNames))) {
+                    granted[i].set(j);
+                }
+            }
+        }
+        return granted;
+    }
+
     @Nonnull
     public Privilege[] getPrivileges(@Nullable String absPath, @Nonnull Set<Principal> principals) throws RepositoryException {
         if (getPrincipals().equals(principals)) {
             return getPrivileges(absPath);
         } else {
-            PermissionProvider provider = config.getPermissionProvider(root, workspaceName, principals);
-            return getPrivileges(absPath, provider, Permissions.READ_ACCESS_CONTROL);
+            return getPrivileges(absPath, getPermissionProvider(principals), Permissions.READ_ACCESS_CONTROL);
         }
     }
     
@@ -188,6 +305,53 @@ public class AssetMetadataDummyAccessControlManager implements AccessControlMana
         return permissionProvider;
     }
     
+    /**
+     * @return the provider of the session for its principals, otherwise a
+     *         kept provider of the principals, refreshed to the current
+     *         revision
+     */
+    @Nonnull
+    private PermissionProvider getPermissionProvider(@Nonnull Set<Principal> principals) {
+        if (getPrincipals().equals(principals)) {
+            return getPermissionProvider();
+        }
+        PermissionProvider provider = providers.get(principals);
+        if (provider == null) {
+            provider = config.getPermissionProvider(root, workspaceName, principals);
+            providers.put(ImmutableSet.copyOf(principals), provider);
+        } else {
+            provider.refresh();
+        }
+        return provider;
+    }
+
+    /**
+     * @return a kept provider of this module for the principals, refreshed to
+     *         the current revision; an empty provider for principals this
+     *         module does not evaluate
+     */
+    @Nonnull
+    private PermissionProvider getAssetPermissionProvider(@Nonnull Set<Principal> principals) {
+        PermissionProvider provider = assetProviders.get(principals);
+        if (provider == null) {
+            provider = assetConfig.getPermissionProvider(root, workspaceName, principals);
+            assetProviders.put(ImmutableSet.copyOf(principals), provider);
+        } else {
+            provider.refresh();
+        }
+        return provider;
+    }
+
+    @Nonnull
+    private static Map<Set<Principal>, PermissionProvider> newProviderCache() {
+        return new LinkedHashMap<Set<Principal>, PermissionProvider>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Set<Principal>, PermissionProvider> eldest) {
+                return size() > MAX_PROVIDERS;
+            }
+        };
+    }
+
     @Nonnull
     private Set<String> getPrivilegeNames(@Nullable String absPath, @Nonnull PermissionProvider provider, long permissions) throws RepositoryException {
         Tree tree;
@@ -0,0 +1,92 @@
+package com.poc.dam.core.permissions;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+
+/**
+ * Evicts cached decisions of assets whose metadata or primary type changed
+ * below the managed roots, and of all assets below folders that were added or
+ * removed, which includes folders moved between managed roots. Meant to run behind a
+ * {@link org.apache.jackrabbit.oak.spi.commit.BackgroundObserver}: the diff is
+ * always taken against the last root seen, so commits that pile up in its
+ * queue are collapsed into a single diff and a single eviction.
+ */
+final class AssetMetadataObserver implements Observer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssetMetadataObserver.class);
+
+    private final AssetDecisionCache decisionCache;
+    private final Collection<String> managedPaths;
+
+    private NodeState previousRoot;
+
+    AssetMetadataObserver(@Nonnull AssetDecisionCache decisionCache, @Nonnull Collection<String> managedPaths) {
+        this.decisionCache = decisionCache;
+        this.managedPaths = managedPaths;
+    }
+
+    @Override
+    public void contentChanged(@Nonnull NodeState root, @Nonnull CommitInfo info) {
+        if (previousRoot != null) {
+            Set<String> changedAssetIds = new HashSet<>();
+            AssetChangeDiff.compare(previousRoot, root, managedPaths, new AssetChangeDiff.Listener() {
+                @Override
+                public void assetChanged(String path, NodeState before, NodeState after) {
+                    // a moved asset keeps its jcr:uuid
+                    collect(before, changedAssetIds);
+                    collect(after, changedAssetIds);
+                }
+
+                @Override
+                public void folderChanged(String path, NodeState before, NodeState after) {
+                    collectAll(before.exists() ? before : after, changedAssetIds);
+                }
+            });
+            if (!changedAssetIds.isEmpty()) {
+                decisionCache.invalidateAssets(changedAssetIds);
+                LOG.debug("Invalidated cached decisions of {} assets", changedAssetIds.size());
+            }
+        }
+        previousRoot = root;
+    }
+
+    /**
+     * Collects the assets below an added or removed folder, including the
+     * nested assets of an asset, e.g. its subassets.
+     */
+    private static void collectAll(@Nonnull NodeState folder, @Nonnull Set<String> changedAssetIds) {
+        for (ChildNodeEntry entry : folder.getChildNodeEntries()) {
+            String name = entry.getName();
+            if (NodeStateUtils.isHidden(name) || !AssetLocator.mayContainAssets(name)) {
+                continue;
+            }
+            NodeState child = entry.getNodeState();
+            if (AssetLocator.isAsset(child)) {
+                collect(child, changedAssetIds);
+            }
+            collectAll(child, changedAssetIds);
+        }
+    }
+
+    private static void collect(@Nonnull NodeState asset, @Nonnull Set<String> changedAssetIds) {
+        PropertyState uuid = asset.getProperty(JcrConstants.JCR_UUID);
+        if (uuid != null) {
+            changedAssetIds.add(uuid.getValue(Type.STRING));
+        }
+    }
+}
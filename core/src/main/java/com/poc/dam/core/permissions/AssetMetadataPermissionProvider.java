@@ -1,15 +1,14 @@
 package com.poc.dam.core.permissions;
 
-import static com.poc.dam.core.permissions.Utils.findAncestorAsset;
-
-import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.function.LongSupplier;
 
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -22,14 +21,12 @@ import org.apache.jackrabbit.oak.plugins.tree.RootProvider;
 import org.apache.jackrabbit.oak.plugins.tree.TreeLocation;
 import org.apache.jackrabbit.oak.plugins.tree.TreeProvider;
 import org.apache.jackrabbit.oak.plugins.tree.TreeType;
-import org.apache.jackrabbit.oak.plugins.tree.TreeTypeProvider;
 import org.apache.jackrabbit.oak.spi.security.Context;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.AggregatedPermissionProvider;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.Permissions;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.RepositoryPermission;
 import org.apache.jackrabbit.oak.spi.security.authorization.permission.TreePermission;
 import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeBits;
-import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeBitsProvider;
 import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeConstants;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.slf4j.Logger;
@@ -38,45 +35,81 @@ import org.slf4j.LoggerFactory;
 import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.dam.api.DamConstants;
 import com.google.common.collect.ImmutableSet;
+import com.poc.dam.core.permissions.AssetMetadataPermissionStats.Method;
+import com.poc.dam.core.permissions.AssetMetadataRules.MetadataSource;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
 import com.poc.dam.core.utils.UtilConstants;
 import com.poc.dam.core.workflows.WorkflowConstants;
 
 public class AssetMetadataPermissionProvider implements AggregatedPermissionProvider {
 	private static final Logger LOG = LoggerFactory.getLogger(AssetMetadataPermissionProvider.class);
 	private static final Set<String> OWNER_PRIVILEGE_NAMES = ImmutableSet.of(PrivilegeConstants.JCR_READ);
-	private Set<String> principalNames;
+	/**
+	 * The privileges this provider can grant, {@code jcr:read} and its
+	 * aggregates.
+	 */
+	static final Set<String> READ_PRIVILEGE_NAMES = ImmutableSet.of(PrivilegeConstants.JCR_READ,
+			PrivilegeConstants.REP_READ_NODES, PrivilegeConstants.REP_READ_PROPERTIES);
+	private static final long OWNER_PERMISSIONS = Permissions.READ;
+	private final PrincipalContext principals;
+	private final boolean readerTags;
+	private final ManagedPathTrie managedPaths;
+	private final AssetDecisionCache decisionCache;
 	private final RootProvider rootProvider;
 	private final TreeProvider treeProvider;
-	private final TreeTypeProvider treeTypeProvider;
 	private final Context ctx;
+	private final AssetMetadataPermissionStats stats;
+	private final AncestorAssetCache ancestorAssetCache;
+	private final SupportedPrivileges supportedPrivileges;
+	private final DecisionTracer tracer;
+	private PrivilegeBits supportedPrivilegeBits;
+	private Tree classifiedTree;
+	private boolean classifiedSupported;
+	private TreeLocation resolvedLocation;
+	private Tree resolvedTree;
 	private Root root;
 	private Root immutableRoot;
+	private NodeState rootState;
 
-	public AssetMetadataPermissionProvider(Root root, RootProvider rootProvider, TreeProvider treeProvider, Context ctx,
-			Set<Principal> principals) {
-		principalNames = new HashSet<>();
+	/**
+	 * Only keeps references: the principal context, trie and caches are
+	 * shared, and the read-only root is created on first use. The provider
+	 * keeps deciding with the given configuration snapshot when the
+	 * configuration is modified.
+	 */
+	AssetMetadataPermissionProvider(Root root, RootProvider rootProvider, TreeProvider treeProvider, Context ctx,
+			PrincipalContext principals, CompiledConfiguration configuration, AssetMetadataPermissionStats stats) {
 
 		this.root = root;
+		this.principals = principals;
+		this.managedPaths = configuration.getManagedPaths();
+		this.decisionCache = configuration.getDecisionCache();
+		this.stats = stats;
+		this.readerTags = configuration.isReaderTagsCurrent();
+		this.supportedPrivileges = configuration.getSupportedPrivileges();
+		DecisionTracer configuredTracer = configuration.getTracer();
+		this.tracer = configuredTracer != null && configuredTracer.accepts(principals) ? configuredTracer : null;
+		this.ancestorAssetCache = new AncestorAssetCache(stats);
 		this.treeProvider = treeProvider;
-		this.treeTypeProvider = new TreeTypeProvider(ctx);
 		this.ctx = ctx;
 		this.rootProvider = rootProvider;
-		this.immutableRoot = rootProvider.createReadOnlyRoot(root);
 
-		for (Principal p : principals) {
-			principalNames.add(p.getName());
-		}
-
-		LOG.debug("Created AssetMetadataPermissionProvider with principals : {}", principalNames);
+		LOG.debug("Created AssetMetadataPermissionProvider with principals : {}", principals);
 	}
 
 	@Override
 	public Set<String> getPrivileges(Tree tree) {
 
-		if (isAncestorAssetOwner(tree)) {
-			return OWNER_PRIVILEGE_NAMES;
-		} else {
-			return Collections.emptySet();
+		long start = System.nanoTime();
+		try {
+			if (isAncestorAssetOwner(tree)) {
+				return OWNER_PRIVILEGE_NAMES;
+			} else {
+				return Collections.emptySet();
+			}
+		} finally {
+			stats.record(Method.GET_PRIVILEGES, start);
 		}
 	}
 
@@ -88,52 +121,93 @@ public class AssetMetadataPermissionProvider implements AggregatedPermissionProv
 	@Override
 	public TreePermission getTreePermission(Tree tree, TreePermission parentPermission) {
 
-		if (isDamPath(tree) || isDamAncestorPath(tree)) {
+		long start = System.nanoTime();
+		try {
+			Node node = managedPaths.classify(tree);
+			if (node == null) {
+				return TreePermission.NO_RECOURSE;
+			} else if (!node.isManaged()) {
+				return new DamAncestorTreePermission(this, node);
+			}
 
-			if (findAncestorAsset(tree) != null) {
-				return isAncestorAssetOwner(tree) ? TreePermission.ALL : parentPermission;
+			Tree asset = findAncestorAsset(tree);
+			if (asset != null) {
+				AssetTreePermission assetPermission = new AssetTreePermission(this,
+						getAssetDecision(asset, node.getRoot()), node.getRoot());
+				return assetPermission.getPermission(PathUtils.relativize(asset.getPath(), tree.getPath()));
 			} else {
-				return new EmptyAssetMetadataTreePermission(tree, TreeType.DEFAULT, this);
+				return new DamFolderTreePermission(this, node);
 			}
+		} finally {
+			stats.record(Method.GET_TREE_PERMISSION, start);
 		}
-
-		return TreePermission.NO_RECOURSE;
 	}
 
 	@Override
 	public boolean hasPrivileges(Tree tree, String... privileges) {
-		if (isAncestorAssetOwner(tree)) {
-			return true;
-		} else {
-			return false;
+
+		long start = System.nanoTime();
+		try {
+			return READ_PRIVILEGE_NAMES.containsAll(Arrays.asList(privileges)) && isAncestorAssetOwner(tree);
+		} finally {
+			stats.record(Method.HAS_PRIVILEGES, start);
 		}
 	}
 
 	@Override
 	public boolean isGranted(String oakPath, String jcrActions) {
-		TreeLocation location = TreeLocation.create(immutableRoot, oakPath);
-		return isGranted(location, 0);
+
+		long start = System.nanoTime();
+		try {
+			TreeLocation location = TreeLocation.create(getImmutableRoot(), oakPath);
+			long permissions = Permissions.getPermissions(jcrActions, location, ctx.definesLocation(location));
+			return isOwnerPermission(permissions)
+					&& isAncestorAssetOwner(getTreeFromLocation(location), location.getProperty());
+		} finally {
+			stats.record(Method.IS_GRANTED_PATH, start);
+		}
 	}
 
 	@Override
 	public boolean isGranted(Tree tree, PropertyState property, long permissions) {
-		boolean answer = false;
-		if (isAncestorAssetOwner(tree)) {
-			answer = true;
-		}
 
-		if (property != null) {
-			LOG.debug("isGranted: {}@{} ({}) = {}", tree.getPath(), property.getName(), permissions, answer);
-		} else {
-			LOG.debug("isGranted: {} ({}) = {}", tree.getPath(), permissions, answer);
+		long start = System.nanoTime();
+		try {
+			return isOwnerPermission(permissions) && isAncestorAssetOwner(tree, property);
+		} finally {
+			stats.record(Method.IS_GRANTED_TREE, start);
 		}
-
-		return answer;
 	}
 
+	/**
+	 * Moves this provider to the current revision of its root, which creates
+	 * a new read-only root on every call. Nothing is discarded if the revision
+	 * did not change; otherwise the read-only trees of the ancestor cache are
+	 * dropped, and of the session's trees only those below assets and folders
+	 * that changed under the managed roots are invalidated.
+	 */
 	@Override
 	public void refresh() {
-		immutableRoot = rootProvider.createReadOnlyRoot(root);
+
+		long start = System.nanoTime();
+		Root refreshed = rootProvider.createReadOnlyRoot(root);
+		NodeState after = treeProvider.asNodeState(refreshed.getTree(PathUtils.ROOT_PATH));
+		if (after != rootState) {
+			if (rootState == null) {
+				LOG.debug("refresh: discarding {}", ancestorAssetCache);
+				ancestorAssetCache.clear();
+			} else {
+				ancestorAssetCache.clearReadOnly();
+				invalidateChanges(rootState, after);
+			}
+			supportedPrivilegeBits = null;
+			classifiedTree = null;
+			resolvedLocation = null;
+			resolvedTree = null;
+		}
+		immutableRoot = refreshed;
+		rootState = after;
+		stats.record(Method.REFRESH, start);
 	}
 
 	@Override
@@ -148,39 +222,59 @@ public class AssetMetadataPermissionProvider implements AggregatedPermissionProv
 
 	@Override
 	public boolean isGranted(TreeLocation treeLocation, long permissions) {
-		if (isAncestorAssetOwner(getTreeFromLocation(treeLocation))) {
-			return true;
+
+		long start = System.nanoTime();
+		try {
+			return isOwnerPermission(permissions)
+					&& isAncestorAssetOwner(getTreeFromLocation(treeLocation), treeLocation.getProperty());
+		} finally {
+			stats.record(Method.IS_GRANTED_LOCATION, start);
 		}
-		return false;
 	}
 
 	@Override
 	public long supportedPermissions(Tree tree, PropertyState property, long permissions) {
 
-		if (tree == null || findAncestorAsset(tree) == null) {
-			// repository level permissions are not supported
-			return Permissions.NO_PERMISSION;
-		} else {
-			return permissions;
+		long start = System.nanoTime();
+		try {
+			if (tree == null || !isSupported(tree)) {
+				// repository level permissions are not supported
+				return Permissions.NO_PERMISSION;
+			} else {
+				return permissions & OWNER_PERMISSIONS;
+			}
+		} finally {
+			stats.record(Method.SUPPORTED_PERMISSIONS, start);
 		}
 	}
 
 	@Override
 	public long supportedPermissions(TreeLocation treeLocation, long permissions) {
-		if (treeLocation == null || getTreeFromLocation(treeLocation) == null
-				|| findAncestorAsset(getTreeFromLocation(treeLocation)) == null) {
-			// repository level permissions are not supported
-			return Permissions.NO_PERMISSION;
-		} else {
-			return permissions;
+
+		long start = System.nanoTime();
+		try {
+			Tree tree = (treeLocation == null) ? null : getTreeFromLocation(treeLocation);
+			if (tree == null || !isSupported(tree)) {
+				// repository level permissions are not supported
+				return Permissions.NO_PERMISSION;
+			} else {
+				return permissions & OWNER_PERMISSIONS;
+			}
+		} finally {
+			stats.record(Method.SUPPORTED_PERMISSIONS, start);
 		}
 	}
 
+	/**
+	 * Only read permissions are supported, so this provider never takes part
+	 * in the evaluation of e.g. {@code READ_ACCESS_CONTROL}.
+	 */
 	@Override
 	public long supportedPermissions(TreePermission treePermission, PropertyState property, long permissions) {
 
-		if (TreePermission.ALL == treePermission) {
-			return permissions;
+		if (TreePermission.ALL == treePermission || (treePermission instanceof AssetTreePermission
+				&& ((AssetTreePermission) treePermission).isReadable())) {
+			return permissions & OWNER_PERMISSIONS;
 		}
 		return Permissions.NO_PERMISSION;
 	}
@@ -188,23 +282,159 @@ public class AssetMetadataPermissionProvider implements AggregatedPermissionProv
 	@Override
 	public PrivilegeBits supportedPrivileges(Tree tree, PrivilegeBits privilegeBits) {
 
-		if (isDamPath(tree) && findAncestorAsset(tree) != null) {
-			PrivilegeBits answer = new PrivilegeBitsProvider(immutableRoot).getBits(PrivilegeBits.JCR_ALL);
-			LOG.debug("supportedPrivileges: returning {}", answer);
-			return answer;
+		long start = System.nanoTime();
+		try {
+			if (tree != null && isSupported(tree)) {
+				if (supportedPrivilegeBits == null) {
+					supportedPrivilegeBits = supportedPrivileges.getBits(getImmutableRoot());
+				}
+				if (privilegeBits == null) {
+					return supportedPrivilegeBits;
+				}
+				return PrivilegeBits.getInstance(privilegeBits).retain(supportedPrivilegeBits).unmodifiable();
+			}
+			return PrivilegeBits.EMPTY;
+		} finally {
+			stats.record(Method.SUPPORTED_PRIVILEGES, start);
+		}
+	}
+
+	/**
+	 * Evaluates many paths at once, e.g. to filter search results or folder
+	 * listings. Every distinct asset is resolved and evaluated once, see
+	 * {@link #resolve(List)}.
+	 * 
+	 * @param oakPaths the paths to evaluate
+	 * @return a bit set with bit {@code i} set if this provider grants access
+	 *         to {@code oakPaths.get(i)}
+	 */
+	public BitSet isGranted(List<String> oakPaths) {
+		return isGranted(resolve(oakPaths));
+	}
+
+	/**
+	 * Resolves the assets of many paths. Every path is resolved to its own
+	 * asset, so a path below a nested asset is not taken for a path of the
+	 * enclosing one; paths that resolve to the same asset share its
+	 * evaluation. Paths that do not exist are not in any asset. The result can
+	 * be evaluated by the providers of other principal sets of the same
+	 * configuration.
+	 */
+	AssetBatch resolve(List<String> oakPaths) {
+
+		AssetBatch batch = new AssetBatch(oakPaths.size());
+		Root readOnlyRoot = getImmutableRoot();
+		Map<String, Integer> assetIndexes = new HashMap<>();
+		for (int index = 0; index < oakPaths.size(); index++) {
+			int assetIndex = -1;
+			Tree tree = readOnlyRoot.getTree(oakPaths.get(index));
+			if (tree.exists()) {
+				Node node = managedPaths.classify(tree);
+				Tree asset = node == null || !node.isManaged() ? null : findAncestorAsset(tree);
+				if (asset != null) {
+					String assetPath = asset.getPath();
+					Integer existing = assetIndexes.get(assetPath);
+					if (existing == null) {
+						existing = batch.addAsset(treeProvider.asNodeState(asset), node.getRoot());
+						assetIndexes.put(assetPath, existing);
+					}
+					assetIndex = existing;
+				}
+			}
+			batch.setAsset(index, assetIndex);
+		}
+		return batch;
+	}
+
+	/**
+	 * Evaluates resolved paths, taking every decision once.
+	 * 
+	 * @return a bit set with bit {@code i} set if this provider grants access
+	 *         to path {@code i} of the batch
+	 */
+	BitSet isGranted(AssetBatch batch) {
+
+		long start = System.nanoTime();
+		long[] decisions = new long[batch.getAssetCount()];
+		for (int i = 0; i < decisions.length; i++) {
+			decisions[i] = getAssetDecision(batch.getAsset(i), batch.getRoot(i));
 		}
-		return PrivilegeBits.EMPTY;
+		BitSet granted = new BitSet(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			int assetIndex = batch.getAssetIndex(i);
+			if (assetIndex >= 0 && decisions[assetIndex] != AssetMetadataRules.DENIED) {
+				granted.set(i);
+			}
+		}
+		stats.record(Method.IS_GRANTED_BATCH, start);
+		return granted;
 	}
 
-	TreePermission getTreePermission(Tree parent, TreeType parentType, String childName, NodeState childState,
-			AssetMetadataTreePermission parentPermission) {
-		Tree t = treeProvider.createReadOnlyTree(parent, childName, childState);
-		TreeType type = treeTypeProvider.getType(t, parentType);
-		return getTreePermission(t, type, parentPermission);
+	/**
+	 * Permission of an asset reached from its parent's permission. The
+	 * decision is deferred to the first read check.
+	 * 
+	 * @param asset the state of the asset node
+	 * @param root  the managed root the asset lives in
+	 */
+	TreePermission getAssetPermission(NodeState asset, ManagedRoot root) {
+		return new LazyAssetTreePermission(this, asset, root);
 	}
 
-	private boolean isDamAncestorPath(final Tree tree) {
-		return tree != null && DamConstants.MOUNTPOINT_ASSETS.startsWith(tree.getPath());
+	/**
+	 * Permission of a folder reached from its parent's permission. A folder
+	 * whose summary shows that none of the principals can read any asset below
+	 * it is denied as a whole, so the traversal of its subtree stops here.
+	 * 
+	 * @param folder  the state of the folder
+	 * @param node    the classification of the folder
+	 * @param current the permission to return if the folder is not pruned
+	 */
+	TreePermission getFolderPermission(NodeState folder, Node node, TreePermission current) {
+		if (readerTags
+				&& AssetReaderTag.isNoneGranted(folder, node.getRoot().getRules(), principals.getSortedPrincipalNames())) {
+			stats.recordFolderPrune();
+			return TreePermission.EMPTY;
+		}
+		return current;
+	}
+
+	/**
+	 * Hit/miss statistics of the ancestor asset resolution of this provider.
+	 */
+	AncestorAssetCache getAncestorAssetCache() {
+		return ancestorAssetCache;
+	}
+
+	private Root getImmutableRoot() {
+		if (immutableRoot == null) {
+			immutableRoot = rootProvider.createReadOnlyRoot(root);
+		}
+		return immutableRoot;
+	}
+
+	private void invalidateChanges(NodeState before, NodeState after) {
+
+		List<String> changedPaths = new ArrayList<>();
+		AssetChangeDiff.compare(before, after, managedPaths.getManagedRootPaths(), new AssetChangeDiff.Listener() {
+			@Override
+			public void assetChanged(String path, NodeState assetBefore, NodeState assetAfter) {
+				changedPaths.add(path);
+			}
+
+			@Override
+			public void folderChanged(String path, NodeState folderBefore, NodeState folderAfter) {
+				changedPaths.add(path);
+			}
+		});
+		if (!changedPaths.isEmpty()) {
+			LOG.debug("refresh: invalidating {} changed paths in {}", changedPaths.size(), ancestorAssetCache);
+			ancestorAssetCache.invalidate(changedPaths);
+		}
+	}
+
+	private Tree findAncestorAsset(Tree tree) {
+		return ancestorAssetCache.findAncestorAsset(tree);
 	}
 
 	/**
@@ -215,85 +445,214 @@ public class AssetMetadataPermissionProvider implements AggregatedPermissionProv
 	 * @return
 	 */
 	private boolean isAncestorAssetOwner(Tree tree) {
+		return isAncestorAssetOwner(tree, null);
+	}
+
+	/**
+	 * Same as {@link #isAncestorAssetOwner(Tree)}, and the property of the tree
+	 * is not masked for the current user.
+	 */
+	private boolean isAncestorAssetOwner(Tree tree, PropertyState property) {
 
 		if (tree == null) {
-			LOG.debug("Tree is null, so permission is denied");
+			return false;
+		}
+		Node node = managedPaths.classify(tree);
+		if (node == null || !node.isManaged()) {
 			return false;
 		}
 		Tree asset = findAncestorAsset(tree);
 		if (asset == null) {
-			LOG.debug("Asset not found for the tree: {}, so permission is denied", tree.getPath());
 			return false;
 		}
-		String assetPath = asset.getPath();
-		LOG.debug("The asset being checked is :{}", assetPath);
+		long decision = getAssetDecision(asset, node.getRoot());
+		if (decision == AssetMetadataRules.DENIED) {
+			return false;
+		}
+		return property == null || decision == 0 || !isMetadata(tree)
+				|| !node.getRoot().getRules().isMasked(decision, property.getName());
+	}
 
-		if (isProjectDAMPath(assetPath)) {
+	/**
+	 * Whether the tree is the jcr:content/metadata node of its enclosing asset.
+	 * The asset is the parent of the nearest jcr:content ancestor that is the
+	 * child of an asset, see {@link AssetLocator#findAncestorAsset(Tree)}, so
+	 * the tree is the metadata of the enclosing asset if the parent of its
+	 * jcr:content parent is an asset; neither paths are built nor the root is
+	 * walked to.
+	 */
+	private static boolean isMetadata(Tree tree) {
+		if (!DamConstants.METADATA_FOLDER.equals(tree.getName()) || tree.isRoot()) {
+			return false;
+		}
+		Tree content = tree.getParent();
+		if (!JcrConstants.JCR_CONTENT.equals(content.getName()) || content.isRoot()) {
+			return false;
+		}
+		return AssetLocator.isAsset(content.getParent());
+	}
 
-			/**
-			*custom logic to return true based on business use cases. Like we can check if 
-			*asset has certain metadata and user is part of CUGs for those metadata.
-			**/
+	private long getAssetDecision(Tree asset, ManagedRoot managedRoot) {
 
-		} 
+		if (managedRoot != null) {
+
+			boolean traced = tracer != null && tracer.sample();
+			long start = traced ? System.nanoTime() : 0;
+			Tree content = asset.getChild(JcrConstants.JCR_CONTENT);
+			Tree metadata = content.getChild(DamConstants.METADATA_FOLDER);
+			long decision = evaluateRules(managedRoot, asset.getProperty(JcrConstants.JCR_UUID),
+					content.getProperty(JcrConstants.JCR_LASTMODIFIED), metadata::getProperty,
+					() -> DecisionSnapshot.hashMetadata(metadata::getProperty, managedRoot.getRules().getPropertyNames()));
+			if (traced) {
+				tracer.record(asset.getPath(), principals, decision,
+						getMatchingRule(managedRoot, metadata::getProperty, decision), System.nanoTime() - start);
+			}
+			return decision;
+		}
 
 		/**
 		 * no access given for paths that are not meant to be handled by this
 		 * permissions provider. Instead the assets at other paths will be allowed or
 		 * denied access based on other providers.
 		 **/
-		return false;
+		return AssetMetadataRules.DENIED;
 
 	}
 
 	/**
-	 * @param asset
-	 * @param metadataPropertyName
-	 * @return
+	 * Same as {@link #getAssetDecision(Tree, ManagedRoot)} for an asset that was
+	 * reached through a child permission, where only the node state is at hand.
+	 * The node state exposes hidden properties, so a current
+	 * {@link AssetReaderTag} answers without reading the metadata. Tags are
+	 * only written for rules without masks.
 	 */
-	private List<String> getAssetMetadata(Tree asset, String metadataPropertyName) {
-
-		if (asset.hasChild(JcrConstants.JCR_CONTENT)) {
-			Tree assetContent = asset.getChild(JcrConstants.JCR_CONTENT);
-			if (assetContent.hasChild(DamConstants.METADATA_FOLDER)) {
-				Tree assetMetadata = assetContent.getChild(DamConstants.METADATA_FOLDER);
-
-				if (assetMetadata.getProperty(metadataPropertyName) != null) {
-					Type type = assetMetadata.getProperty(metadataPropertyName).getType();
-					if (type.equals(Type.STRINGS)) {
-						return StreamSupport.stream(
-								assetMetadata.getProperty(metadataPropertyName).getValue(Type.STRINGS).spliterator(),
-								false).collect(Collectors.toList());
-					} else {
-						List<String> result = new ArrayList();
-						result.add(assetMetadata.getProperty(metadataPropertyName).getValue(Type.STRING));
-						return result;
-					}
-				}
+	long getAssetDecision(NodeState asset, ManagedRoot managedRoot) {
+
+		boolean traced = tracer != null && tracer.sample();
+		long start = traced ? System.nanoTime() : 0;
+		long decision = evaluateAsset(asset, managedRoot);
+		if (traced) {
+			PropertyState assetId = asset.getProperty(JcrConstants.JCR_UUID);
+			NodeState metadata = asset.getChildNode(JcrConstants.JCR_CONTENT)
+					.getChildNode(DamConstants.METADATA_FOLDER);
+			tracer.recordById(assetId == null ? null : assetId.getValue(Type.STRING), managedRoot.getPath(),
+					principals, decision, getMatchingRule(managedRoot, metadata::getProperty, decision),
+					System.nanoTime() - start);
+		}
+		return decision;
+	}
+
+	private long evaluateAsset(NodeState asset, ManagedRoot managedRoot) {
+
+		if (readerTags) {
+			Boolean granted = AssetReaderTag.isGranted(asset, managedRoot.getRules(),
+					principals.getSortedPrincipalNames());
+			if (granted != null) {
+				stats.recordReaderTagHit();
+				stats.recordDecision(managedRoot, granted);
+				return granted ? 0 : AssetMetadataRules.DENIED;
 			}
 		}
-		LOG.debug("No metadata found for property: {} for asset: {}", metadataPropertyName, asset.getPath());
-		return Collections.emptyList();
+
+		NodeState content = asset.getChildNode(JcrConstants.JCR_CONTENT);
+		NodeState metadata = content.getChildNode(DamConstants.METADATA_FOLDER);
+		return evaluateRules(managedRoot, asset.getProperty(JcrConstants.JCR_UUID),
+				content.getProperty(JcrConstants.JCR_LASTMODIFIED), metadata::getProperty,
+				() -> DecisionSnapshot.hashMetadata(metadata::getProperty, managedRoot.getRules().getPropertyNames()));
 	}
 
-	private boolean isProjectDAMPath(final String assetPath) {
-		return assetPath.startsWith("/content/dam/poc");
+	/**
+	 * The rule that matched a sampled decision, for the decision trace.
+	 */
+	private String getMatchingRule(ManagedRoot managedRoot, MetadataSource metadata, long decision) {
+		return decision == AssetMetadataRules.DENIED ? null
+				: managedRoot.getRules().getMatchingRule(metadata, principals.getPrincipalNames());
 	}
 
-	private boolean isDamPath(Tree tree) {
-		return tree != null && tree.getPath().startsWith(DamConstants.MOUNTPOINT_ASSETS);
+	/**
+	 * Evaluates the metadata rules for an asset, going through the shared
+	 * decision cache when the asset is referenceable.
+	 * 
+	 * @param managedRoot the managed root of the asset
+	 * @param assetId     the jcr:uuid of the asset
+	 * @param revision    the jcr:lastModified of the asset's jcr:content
+	 * @param metadata    the metadata of the asset
+	 * @param metadataHash computes the hash of the asset's metadata for the
+	 *                    decision snapshot
+	 * @return the decision, see {@link AssetMetadataRules#evaluate}
+	 */
+	private long evaluateRules(ManagedRoot managedRoot, PropertyState assetId, PropertyState revision,
+			MetadataSource metadata, LongSupplier metadataHash) {
+
+		AssetMetadataRules rules = managedRoot.getRules();
+		Long decision;
+		Set<String> principalNames = principals.getPrincipalNames();
+		if (decisionCache == null || assetId == null) {
+			decision = rules.evaluate(metadata, principalNames);
+		} else {
+			String id = assetId.getValue(Type.STRING);
+			String rev = revision == null ? null : revision.getValue(Type.STRING);
+			decision = decisionCache.getDecision(principals, managedRoot, id, rev, metadataHash);
+			if (decision == null) {
+				decision = rules.evaluate(metadata, principalNames);
+				decisionCache.putDecision(principals, managedRoot, id, rev, decision, metadataHash);
+			}
+		}
+		stats.recordDecision(managedRoot, decision != AssetMetadataRules.DENIED);
+		return decision;
 	}
 
-	private static Tree getTreeFromLocation(TreeLocation location) {
-		LOG.debug("getTreeFromLocation: location path is '{}'", location.getPath());
-		Tree tree = (location.getProperty() == null) ? location.getTree() : location.getParent().getTree();
-		while (tree == null && !PathUtils.denotesRoot(location.getPath())) {
-			location = location.getParent();
-			tree = location.getTree();
+	/**
+	 * Whether the tree is in an asset below a managed root. The composite
+	 * provider asks for the supported permissions and privileges of a tree
+	 * right before evaluating it, so the last classification is kept until the
+	 * next refresh that sees a new revision.
+	 */
+	private boolean isSupported(final Tree tree) {
+		if (tree != classifiedTree) {
+			Node node = managedPaths.classify(tree);
+			classifiedSupported = node != null && node.isManaged() && findAncestorAsset(tree) != null;
+			classifiedTree = tree;
+		}
+		return classifiedSupported;
+	}
+
+	/**
+	 * The owner of an asset is only ever granted read access.
+	 */
+	private static boolean isOwnerPermission(long permissions) {
+		return Permissions.includes(OWNER_PERMISSIONS, permissions);
+	}
+
+	/**
+	 * Resolves the tree of a location, or of its nearest existing ancestor. The
+	 * composite provider asks for the supported permissions and then for the
+	 * permissions of the same location, so the last resolution is kept.
+	 */
+	private Tree getTreeFromLocation(TreeLocation location) {
+		if (location != resolvedLocation) {
+			Tree tree = (location.getProperty() == null) ? location.getTree() : location.getParent().getTree();
+			if (tree == null) {
+				tree = getNearestExistingTree(getImmutableRoot(), location.getPath());
+			}
+			resolvedLocation = location;
+			resolvedTree = tree;
 		}
+		return resolvedTree;
+	}
 
-		if (tree != null) {
-			LOG.debug("getTreeFromLocation: returning tree for '{}'", tree.getPath());
+	/**
+	 * Descends from the root along the path in one pass, instead of climbing
+	 * up from the missing item one location at a time.
+	 */
+	private static Tree getNearestExistingTree(Root root, String path) {
+		Tree tree = root.getTree(PathUtils.ROOT_PATH);
+		for (String name : PathUtils.elements(path)) {
+			Tree child = tree.getChild(name);
+			if (!child.exists()) {
+				break;
+			}
+			tree = child;
 		}
 		return tree;
 	}
@@ -0,0 +1,358 @@
+package com.poc.dam.core.permissions;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import com.google.common.cache.CacheStats;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+
+/**
+ * Counters and latency histograms of the permission providers of one
+ * configuration. All counters are {@link LongAdder}s, so recording from many
+ * request threads does not contend.
+ */
+final class AssetMetadataPermissionStats implements AssetMetadataPermissionStatsMBean {
+
+    /**
+     * The timed {@code PermissionProvider} methods.
+     */
+    enum Method {
+        GET_PRIVILEGES,
+        HAS_PRIVILEGES,
+        GET_TREE_PERMISSION,
+        IS_GRANTED_PATH,
+        IS_GRANTED_TREE,
+        IS_GRANTED_LOCATION,
+        IS_GRANTED_BATCH,
+        SUPPORTED_PERMISSIONS,
+        SUPPORTED_PRIVILEGES,
+        REFRESH
+    }
+
+    /**
+     * Latencies are bucketed by powers of two of microseconds: bucket
+     * {@code i} holds latencies below {@code 2^i} us, the last bucket holds
+     * everything from {@code 2^(BUCKETS - 2)} us, about 4 s.
+     */
+    private static final int BUCKETS = 24;
+
+    private static final String[] METHOD_ITEMS = { "method", "calls", "meanMicros", "p50Micros", "p99Micros",
+            "p999Micros", "histogram" };
+    private static final String[] ROOT_ITEMS = { "root", "granted", "denied" };
+
+    private final MethodStats[] methods;
+    private volatile Map<ManagedRoot, RootStats> roots = new IdentityHashMap<>();
+    private volatile AssetDecisionCache decisionCache;
+    private volatile DecisionTracer tracer;
+
+    private final LongAdder ancestorCacheHits = new LongAdder();
+    private final LongAdder ancestorCacheMisses = new LongAdder();
+    private final LongAdder readerTagHits = new LongAdder();
+    private final LongAdder folderPrunes = new LongAdder();
+    private final LongAdder readerTagScans = new LongAdder();
+    private final LongAdder readerTagWrites = new LongAdder();
+
+    private volatile boolean readerTagJobRunning;
+
+    AssetMetadataPermissionStats(@Nonnull Collection<ManagedRoot> managedRoots,
+                                 @Nullable AssetDecisionCache decisionCache, @Nullable DecisionTracer tracer) {
+        this.methods = new MethodStats[Method.values().length];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = new MethodStats();
+        }
+        update(managedRoots, decisionCache, tracer);
+    }
+
+    /**
+     * Switches to the roots, cache and tracer of a modified configuration.
+     * Counters of roots that are still managed are kept.
+     */
+    void update(@Nonnull Collection<ManagedRoot> managedRoots, @Nullable AssetDecisionCache decisionCache,
+                @Nullable DecisionTracer tracer) {
+        Map<String, RootStats> previous = new HashMap<>();
+        for (Map.Entry<ManagedRoot, RootStats> entry : roots.entrySet()) {
+            previous.put(entry.getKey().getPath(), entry.getValue());
+        }
+        Map<ManagedRoot, RootStats> updated = new IdentityHashMap<>();
+        for (ManagedRoot managedRoot : managedRoots) {
+            RootStats stats = previous.get(managedRoot.getPath());
+            updated.put(managedRoot, stats != null ? stats : new RootStats());
+        }
+        this.roots = updated;
+        this.decisionCache = decisionCache;
+        this.tracer = tracer;
+    }
+
+    /**
+     * @param method    the method called
+     * @param startTime the {@link System#nanoTime()} the call started at
+     */
+    void record(@Nonnull Method method, long startTime) {
+        methods[method.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    void recordDecision(@Nonnull ManagedRoot managedRoot, boolean granted) {
+        RootStats stats = roots.get(managedRoot);
+        if (stats != null) {
+            (granted ? stats.granted : stats.denied).increment();
+        }
+    }
+
+    void recordAncestorCacheHit() {
+        ancestorCacheHits.increment();
+    }
+
+    void recordAncestorCacheMiss() {
+        ancestorCacheMisses.increment();
+    }
+
+    void recordReaderTagHit() {
+        readerTagHits.increment();
+    }
+
+    void recordFolderPrune() {
+        folderPrunes.increment();
+    }
+
+    void recordReaderTagScan() {
+        readerTagScans.increment();
+    }
+
+    void recordReaderTagWrite() {
+        readerTagWrites.increment();
+    }
+
+    void setReaderTagJobRunning(boolean running) {
+        readerTagJobRunning = running;
+    }
+
+    //------------------------------------------------------------< MBean >---
+
+    @Override
+    public TabularData getMethodStatistics() {
+        try {
+            CompositeType rowType = new CompositeType("MethodStatistics", "Statistics of a provider method",
+                    METHOD_ITEMS, METHOD_ITEMS, new OpenType[] { SimpleType.STRING, SimpleType.LONG,
+                            SimpleType.DOUBLE, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING });
+            TabularDataSupport data = new TabularDataSupport(
+                    new TabularType("MethodStatistics", "Statistics per provider method", rowType, new String[] { "method" }));
+            for (Method method : Method.values()) {
+                MethodStats stats = methods[method.ordinal()];
+                long[] histogram = stats.getHistogram();
+                long calls = stats.calls.sum();
+                double mean = calls == 0 ? 0d : TimeUnit.NANOSECONDS.toMicros(stats.nanos.sum()) / (double) calls;
+                data.put(new CompositeDataSupport(rowType, METHOD_ITEMS, new Object[] { method.name(), calls, mean,
+                        percentile(histogram, calls, 0.5), percentile(histogram, calls, 0.99),
+                        percentile(histogram, calls, 0.999), format(histogram) }));
+            }
+            return data;
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public TabularData getManagedRootStatistics() {
+        try {
+            CompositeType rowType = new CompositeType("ManagedRootStatistics", "Decisions of a managed root",
+                    ROOT_ITEMS, ROOT_ITEMS, new OpenType[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG });
+            TabularDataSupport data = new TabularDataSupport(
+                    new TabularType("ManagedRootStatistics", "Decisions per managed root", rowType, new String[] { "root" }));
+            for (Map.Entry<ManagedRoot, RootStats> entry : roots.entrySet()) {
+                data.put(new CompositeDataSupport(rowType, ROOT_ITEMS, new Object[] { entry.getKey().getPath(),
+                        entry.getValue().granted.sum(), entry.getValue().denied.sum() }));
+            }
+            return data;
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public long getAncestorCacheHitCount() {
+        return ancestorCacheHits.sum();
+    }
+
+    @Override
+    public long getAncestorCacheMissCount() {
+        return ancestorCacheMisses.sum();
+    }
+
+    @Override
+    public double getAncestorCacheHitRate() {
+        long hits = ancestorCacheHits.sum();
+        long total = hits + ancestorCacheMisses.sum();
+        return total == 0 ? 0d : (double) hits / total;
+    }
+
+    @Override
+    public long getDecisionCacheSize() {
+        AssetDecisionCache cache = decisionCache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getDecisionCacheHitCount() {
+        CacheStats stats = getDecisionCacheStats();
+        return stats == null ? 0 : stats.hitCount();
+    }
+
+    @Override
+    public long getDecisionCacheMissCount() {
+        CacheStats stats = getDecisionCacheStats();
+        return stats == null ? 0 : stats.missCount();
+    }
+
+    @Override
+    public double getDecisionCacheHitRate() {
+        CacheStats stats = getDecisionCacheStats();
+        return stats == null ? 0d : stats.hitRate();
+    }
+
+    @Override
+    public long getReaderTagHitCount() {
+        return readerTagHits.sum();
+    }
+
+    @Override
+    public long getFolderPruneCount() {
+        return folderPrunes.sum();
+    }
+
+    @Override
+    public boolean isReaderTagJobRunning() {
+        return readerTagJobRunning;
+    }
+
+    @Override
+    public long getReaderTagScanCount() {
+        return readerTagScans.sum();
+    }
+
+    @Override
+    public long getReaderTagWriteCount() {
+        return readerTagWrites.sum();
+    }
+
+    @Override
+    public String[] dumpDecisionTrace() {
+        DecisionTracer current = tracer;
+        return current == null ? new String[0] : current.dump().toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        for (MethodStats stats : methods) {
+            stats.reset();
+        }
+        for (RootStats stats : roots.values()) {
+            stats.granted.reset();
+            stats.denied.reset();
+        }
+        ancestorCacheHits.reset();
+        ancestorCacheMisses.reset();
+        readerTagHits.reset();
+        folderPrunes.reset();
+    }
+
+    @CheckForNull
+    private CacheStats getDecisionCacheStats() {
+        AssetDecisionCache cache = decisionCache;
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket holding the given
+     *         percentile, or the lower bound of the last bucket, which has no
+     *         upper bound
+     */
+    private static long percentile(@Nonnull long[] histogram, long calls, double percentile) {
+        long threshold = (long) Math.ceil(calls * percentile);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= threshold && seen > 0) {
+                return i == histogram.length - 1 ? 1L << (i - 1) : 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Nonnull
+    private static String format(@Nonnull long[] histogram) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                if (i == histogram.length - 1) {
+                    sb.append(">=").append(1L << (i - 1));
+                } else {
+                    sb.append('<').append(1L << i);
+                }
+                sb.append("us=").append(histogram[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static final class MethodStats {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        private MethodStats() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        private void record(long duration) {
+            calls.increment();
+            nanos.add(duration);
+            long micros = TimeUnit.NANOSECONDS.toMicros(duration);
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            histogram[Math.min(bucket, BUCKETS - 1)].increment();
+        }
+
+        private long[] getHistogram() {
+            long[] counts = new long[histogram.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram[i].sum();
+            }
+            return counts;
+        }
+
+        private void reset() {
+            calls.reset();
+            nanos.reset();
+            for (LongAdder bucket : histogram) {
+                bucket.reset();
+            }
+        }
+    }
+
+    private static final class RootStats {
+
+        private final LongAdder granted = new LongAdder();
+        private final LongAdder denied = new LongAdder();
+    }
+}
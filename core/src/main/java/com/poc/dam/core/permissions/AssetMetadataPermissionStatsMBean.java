@@ -0,0 +1,74 @@
+package com.poc.dam.core.permissions;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Runtime statistics of the asset metadata permission provider, registered
+ * with JMX by {@link AssetMetadataAuthorizationConfiguration}.
+ */
+public interface AssetMetadataPermissionStatsMBean {
+
+    String TYPE = "AssetMetadataPermissionStats";
+
+    /**
+     * Calls, mean latency, latency percentiles and the latency histogram per
+     * {@code PermissionProvider} method.
+     */
+    TabularData getMethodStatistics();
+
+    /**
+     * Grant and deny decisions per managed root.
+     */
+    TabularData getManagedRootStatistics();
+
+    long getAncestorCacheHitCount();
+
+    long getAncestorCacheMissCount();
+
+    double getAncestorCacheHitRate();
+
+    long getDecisionCacheSize();
+
+    long getDecisionCacheHitCount();
+
+    long getDecisionCacheMissCount();
+
+    double getDecisionCacheHitRate();
+
+    /**
+     * Decisions answered from a materialized reader tag.
+     */
+    long getReaderTagHitCount();
+
+    /**
+     * Folders denied as a whole from their reader summary.
+     */
+    long getFolderPruneCount();
+
+    /**
+     * Whether the background job tagging existing assets is running.
+     */
+    boolean isReaderTagJobRunning();
+
+    /**
+     * Assets visited by the background tagging job.
+     */
+    long getReaderTagScanCount();
+
+    /**
+     * Tags written by the background tagging job.
+     */
+    long getReaderTagWriteCount();
+
+    /**
+     * The sampled asset decisions recorded by the decision tracer, oldest
+     * first; empty if tracing is disabled.
+     */
+    String[] dumpDecisionTrace();
+
+    /**
+     * Resets all counters and histograms. Cache sizes and the progress of the
+     * tagging job are not affected.
+     */
+    void reset();
+}
@@ -0,0 +1,529 @@
+package com.poc.dam.core.permissions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Immutable set of metadata rules compiled from the
+ * {@code metadataRules} configuration. An asset is readable if any rule
+ * matches; a rule matches if all of its conditions hold. Conditions are
+ * separated by {@code &&} and take one of these forms:
+ * <ul>
+ * <li>{@code <property> in principals}: a value of the metadata property is
+ * one of the principal names of the session</li>
+ * <li>{@code <property> == <value>}: a value of the metadata property equals
+ * the given value</li>
+ * <li>{@code principal == <name>}: the session has the given principal</li>
+ * </ul>
+ * Example: {@code dam:status == approved && principal == poc-partners}.
+ * A rule may end with {@code masking <property>, <property>...} to grant the
+ * asset without these metadata properties, e.g.
+ * {@code principal == poc-partners masking poc:contractId, poc:talentRelease}.
+ * A property is hidden if every matching rule masks it.
+ * Conditions that need no metadata are evaluated first. Each condition reads
+ * its property once and walks the values by index against the immutable
+ * principal-name set of the session, stopping at the first match, so
+ * evaluation does not allocate for string properties.
+ * <p>
+ * If no rule has more than one principal condition, the readers of an asset
+ * can be expressed as a set of principal names, see {@link #getReaders}.
+ * <p>
+ * The masked property names of all rules are numbered once when the rules are
+ * compiled, so a decision is a bitmap of the masked names ({@code 0} if
+ * nothing is masked, {@link #DENIED} if the asset is not readable), and
+ * checking a property is a single lookup of its number, see
+ * {@link #isMasked}.
+ */
+final class AssetMetadataRules {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssetMetadataRules.class);
+
+    static final AssetMetadataRules EMPTY = new AssetMetadataRules(new Rule[0], Collections.emptyMap());
+
+    /**
+     * Reader that stands for every principal, for rules without principal
+     * conditions. Principal names are never empty.
+     */
+    static final String ANY_PRINCIPAL = "";
+
+    /**
+     * Decision of an asset that is not readable. Masks never have the sign
+     * bit set.
+     */
+    static final long DENIED = -1L;
+
+    /**
+     * Maximum number of distinct masked property names of a set of rules.
+     */
+    static final int MAX_MASKED_PROPERTIES = Long.SIZE - 1;
+
+    /**
+     * Version of the reader semantics, part of the fingerprint.
+     */
+    private static final int READERS_VERSION = 1;
+
+    private static final String AND = "&&";
+    private static final String EQUALS = "==";
+    private static final String IN_PRINCIPALS = " in principals";
+    private static final String PRINCIPAL = "principal";
+    private static final String MASKING = " masking ";
+
+    private final Rule[] rules;
+    private final Map<String, Integer> maskedProperties;
+    private final List<String> propertyNames;
+    private final boolean materializable;
+    private final long fingerprint;
+
+    private AssetMetadataRules(@Nonnull Rule[] rules, @Nonnull Map<String, Integer> maskedProperties) {
+        this.rules = rules;
+        this.maskedProperties = ImmutableMap.copyOf(maskedProperties);
+        boolean materializable = maskedProperties.isEmpty();
+        Set<String> propertyNames = new TreeSet<>();
+        Hasher hasher = Hashing.murmur3_128().newHasher().putInt(READERS_VERSION);
+        for (Rule rule : rules) {
+            materializable &= rule.principalConditions <= 1;
+            for (Condition condition : rule.conditions) {
+                String propertyName = condition.getPropertyName();
+                if (propertyName != null) {
+                    propertyNames.add(propertyName);
+                }
+            }
+            hasher.putString(rule.definition, StandardCharsets.UTF_8).putChar('\n');
+        }
+        this.materializable = materializable;
+        this.propertyNames = ImmutableList.copyOf(propertyNames);
+        this.fingerprint = hasher.hash().asLong();
+    }
+
+    /**
+     * Compiles the given rule definitions. Invalid definitions are logged and
+     * skipped, which only ever takes access away.
+     */
+    @Nonnull
+    static AssetMetadataRules compile(@Nullable String[] definitions) {
+        if (definitions == null || definitions.length == 0) {
+            return EMPTY;
+        }
+        List<Rule> compiled = new ArrayList<>(definitions.length);
+        Map<String, Integer> maskedProperties = new HashMap<>();
+        for (String definition : definitions) {
+            if (StringUtils.isBlank(definition)) {
+                continue;
+            }
+            try {
+                compiled.add(compileRule(definition, maskedProperties));
+            } catch (IllegalArgumentException e) {
+                LOG.error("Ignoring invalid metadata rule '{}': {}", definition, e.getMessage());
+            }
+        }
+        return compiled.isEmpty() ? EMPTY
+                : new AssetMetadataRules(compiled.toArray(new Rule[0]), maskedProperties);
+    }
+
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+
+    /**
+     * @param metadata       the {@code jcr:content/metadata} node of the asset
+     * @param principalNames the principal names of the session
+     * @return {@code true} if any rule grants access
+     */
+    boolean isGranted(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+        return evaluate(metadata, principalNames) != DENIED;
+    }
+
+    /**
+     * @param metadata       the {@code jcr:content/metadata} node of the asset
+     * @param principalNames the principal names of the session
+     * @return {@link #DENIED} if no rule grants access, otherwise the mask of
+     *         the metadata properties masked by all matching rules
+     */
+    long evaluate(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+        long decision = DENIED;
+        for (Rule rule : rules) {
+            if (rule.matches(metadata, principalNames)) {
+                decision = decision == DENIED ? rule.mask : decision & rule.mask;
+                if (decision == 0) {
+                    break;
+                }
+            }
+        }
+        return decision;
+    }
+
+    /**
+     * For diagnosis only, evaluates the rules again.
+     *
+     * @return the definition of the first rule granting access, or
+     *         {@code null} if no rule does
+     */
+    @CheckForNull
+    String getMatchingRule(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+        for (Rule rule : rules) {
+            if (rule.matches(metadata, principalNames)) {
+                return rule.definition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param decision     a decision of these rules, see {@link #evaluate}
+     * @param propertyName the name of a property of the asset's
+     *                     {@code jcr:content/metadata}
+     * @return whether the property is hidden by the decision
+     */
+    boolean isMasked(long decision, @Nonnull String propertyName) {
+        if (decision == 0) {
+            return false;
+        }
+        Integer index = maskedProperties.get(propertyName);
+        return index != null && (decision & (1L << index)) != 0;
+    }
+
+    /**
+     * @return whether the readers of an asset can be expressed as a set of
+     *         principal names, which requires that no rule masks properties
+     */
+    boolean isMaterializable() {
+        return materializable;
+    }
+
+    /**
+     * @return the sorted names of the metadata properties the conditions
+     *         read, the only properties a decision depends on
+     */
+    @Nonnull
+    List<String> getPropertyNames() {
+        return propertyNames;
+    }
+
+    /**
+     * @return a fingerprint of the rule definitions, identifying the rules
+     *         materialized readers were computed with
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Computes the principal names these rules grant access to for the given
+     * metadata: a session may read the asset if it has any of them.
+     *
+     * @param metadata the {@code jcr:content/metadata} node of the asset
+     * @return the sorted reader names, starting with {@link #ANY_PRINCIPAL} if
+     *         a rule grants access regardless of principals, or {@code null} if
+     *         the rules are not {@link #isMaterializable() materializable}
+     */
+    @CheckForNull
+    String[] getReaders(@Nonnull MetadataSource metadata) {
+        if (!materializable) {
+            return null;
+        }
+        Set<String> readers = new TreeSet<>();
+        for (Rule rule : rules) {
+            rule.collectReaders(metadata, readers);
+        }
+        return readers.toArray(new String[0]);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(rules);
+    }
+
+    @Nonnull
+    private static Rule compileRule(@Nonnull String definition, @Nonnull Map<String, Integer> maskedProperties) {
+        String conditionsDefinition = definition;
+        long mask = 0;
+        int masking = definition.indexOf(MASKING);
+        if (masking >= 0) {
+            conditionsDefinition = definition.substring(0, masking);
+            mask = compileMask(definition.substring(masking + MASKING.length()), maskedProperties);
+        }
+        String[] terms = StringUtils.splitByWholeSeparator(conditionsDefinition, AND);
+        Condition[] conditions = new Condition[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            conditions[i] = compileCondition(terms[i].trim());
+        }
+        Arrays.sort(conditions, Comparator.comparingInt(Condition::cost));
+        return new Rule(definition.trim(), conditions, mask);
+    }
+
+    /**
+     * Numbers the masked property names, adding new names to the given index.
+     * The index is only changed if all names fit.
+     */
+    private static long compileMask(@Nonnull String names, @Nonnull Map<String, Integer> maskedProperties) {
+        Map<String, Integer> added = new HashMap<>();
+        long mask = 0;
+        for (String name : StringUtils.split(names, ',')) {
+            String property = requireName(name.trim(), names);
+            Integer index = maskedProperties.get(property);
+            if (index == null) {
+                index = added.get(property);
+            }
+            if (index == null) {
+                index = maskedProperties.size() + added.size();
+                if (index >= MAX_MASKED_PROPERTIES) {
+                    throw new IllegalArgumentException("more than " + MAX_MASKED_PROPERTIES + " masked properties");
+                }
+                added.put(property, index);
+            }
+            mask |= 1L << index;
+        }
+        if (mask == 0) {
+            throw new IllegalArgumentException("no masked properties in '" + names + "'");
+        }
+        maskedProperties.putAll(added);
+        return mask;
+    }
+
+    @Nonnull
+    private static Condition compileCondition(@Nonnull String term) {
+        if (term.endsWith(IN_PRINCIPALS)) {
+            String property = requireName(StringUtils.removeEnd(term, IN_PRINCIPALS).trim(), term);
+            return new PropertyInPrincipals(property);
+        }
+        int eq = term.indexOf(EQUALS);
+        if (eq > 0) {
+            String left = requireName(term.substring(0, eq).trim(), term);
+            String right = requireName(term.substring(eq + EQUALS.length()).trim(), term);
+            return PRINCIPAL.equals(left) ? new HasPrincipal(right) : new PropertyEquals(left, right);
+        }
+        throw new IllegalArgumentException("unsupported condition '" + term + "'");
+    }
+
+    @Nonnull
+    private static String requireName(@Nonnull String name, @Nonnull String term) {
+        if (name.isEmpty() || StringUtils.containsWhitespace(name)) {
+            throw new IllegalArgumentException("invalid name in condition '" + term + "'");
+        }
+        return name;
+    }
+
+    /**
+     * Read access to the metadata properties of one asset, backed by either a
+     * {@code Tree} or a {@code NodeState}.
+     */
+    interface MetadataSource {
+
+        @CheckForNull
+        PropertyState getProperty(@Nonnull String name);
+    }
+
+    private static final class Rule {
+
+        private final String definition;
+        private final Condition[] conditions;
+        private final int principalConditions;
+        private final long mask;
+
+        private Rule(@Nonnull String definition, @Nonnull Condition[] conditions, long mask) {
+            this.definition = definition;
+            this.conditions = conditions;
+            this.mask = mask;
+            int principalConditions = 0;
+            for (Condition condition : conditions) {
+                if (condition instanceof PrincipalCondition) {
+                    principalConditions++;
+                }
+            }
+            this.principalConditions = principalConditions;
+        }
+
+        private boolean matches(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(metadata, principalNames)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Only called for rules with at most one principal condition.
+         */
+        private void collectReaders(@Nonnull MetadataSource metadata, @Nonnull Set<String> readers) {
+            PrincipalCondition principalCondition = null;
+            for (Condition condition : conditions) {
+                if (condition instanceof PrincipalCondition) {
+                    principalCondition = (PrincipalCondition) condition;
+                } else if (!condition.matches(metadata, Collections.emptySet())) {
+                    return;
+                }
+            }
+            if (principalCondition == null) {
+                readers.add(ANY_PRINCIPAL);
+            } else {
+                principalCondition.collectPrincipals(metadata, readers);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return definition;
+        }
+    }
+
+    private interface Condition {
+
+        boolean matches(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames);
+
+        /**
+         * Relative evaluation cost, used to evaluate cheap conditions first.
+         */
+        int cost();
+
+        /**
+         * @return the name of the metadata property read, {@code null} if
+         *         none is
+         */
+        @CheckForNull
+        String getPropertyName();
+    }
+
+    /**
+     * A condition on the principals of the session.
+     */
+    private interface PrincipalCondition extends Condition {
+
+        /**
+         * Adds the principal names satisfying this condition.
+         */
+        void collectPrincipals(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames);
+    }
+
+    private static final class HasPrincipal implements PrincipalCondition {
+
+        private final String principalName;
+
+        private HasPrincipal(@Nonnull String principalName) {
+            this.principalName = principalName;
+        }
+
+        @Override
+        public boolean matches(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            return principalNames.contains(principalName);
+        }
+
+        @Override
+        public void collectPrincipals(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            principalNames.add(principalName);
+        }
+
+        @Override
+        public int cost() {
+            return 0;
+        }
+
+        @Override
+        public String getPropertyName() {
+            return null;
+        }
+    }
+
+    private static final class PropertyEquals implements Condition {
+
+        private final String propertyName;
+        private final String value;
+
+        private PropertyEquals(@Nonnull String propertyName, @Nonnull String value) {
+            this.propertyName = propertyName;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            PropertyState property = metadata.getProperty(propertyName);
+            if (property != null) {
+                for (int i = 0, count = property.count(); i < count; i++) {
+                    if (value.equals(property.getValue(Type.STRING, i))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int cost() {
+            return 1;
+        }
+
+        @Override
+        public String getPropertyName() {
+            return propertyName;
+        }
+    }
+
+    private static final class PropertyInPrincipals implements PrincipalCondition {
+
+        private final String propertyName;
+
+        private PropertyInPrincipals(@Nonnull String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        @Override
+        public boolean matches(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            PropertyState property = metadata.getProperty(propertyName);
+            if (property != null) {
+                for (int i = 0, count = property.count(); i < count; i++) {
+                    if (principalNames.contains(property.getValue(Type.STRING, i))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void collectPrincipals(@Nonnull MetadataSource metadata, @Nonnull Set<String> principalNames) {
+            PropertyState property = metadata.getProperty(propertyName);
+            if (property != null) {
+                for (int i = 0, count = property.count(); i < count; i++) {
+                    String value = property.getValue(Type.STRING, i);
+                    if (!value.isEmpty()) {
+                        // an empty value would read as ANY_PRINCIPAL
+                        principalNames.add(value);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int cost() {
+            return 2;
+        }
+
+        @Override
+        public String getPropertyName() {
+            return propertyName;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.poc.dam.core.permissions;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.DamConstants;
+import com.google.common.collect.Iterables;
+
+/**
+ * Materialized read decision of an asset: the sorted principal names its
+ * metadata grants read access to, see {@link AssetMetadataRules#getReaders},
+ * and the fingerprint of the rules they were computed with. Both are hidden
+ * properties of the asset node, so they are invisible to sessions and only
+ * readable from a {@code NodeState}. A tag is only trusted if its fingerprint
+ * matches the current rules of the asset's managed root.
+ * <p>
+ * Folders carry a summary in the same form: the union of the readers of all
+ * assets below them. A summary is only written if every asset below the
+ * folder has a current tag, and collapses to {@link AssetMetadataRules#ANY_PRINCIPAL}
+ * beyond {@link #MAX_FOLDER_READERS} names. An asset with children other than
+ * its {@code jcr:content}, e.g. {@code subassets}, carries a summary of these
+ * children as well, so the readers it adds to the summary of its folder
+ * include those of its nested assets.
+ */
+final class AssetReaderTag {
+
+    static final String READERS = ":damReaders";
+    static final String RULES = ":damReadersRules";
+    static final String FOLDER_READERS = ":damFolderReaders";
+    static final String FOLDER_RULES = ":damFolderReadersRules";
+
+    static final int MAX_FOLDER_READERS = 1000;
+
+    private AssetReaderTag() {
+    }
+
+    /**
+     * @param asset          the state of the asset node
+     * @param rules          the current rules of the asset's managed root
+     * @param principalNames the sorted principal names of the session
+     * @return the materialized decision, or {@code null} if the asset has no
+     *         current tag
+     */
+    @CheckForNull
+    static Boolean isGranted(@Nonnull NodeState asset, @Nonnull AssetMetadataRules rules,
+                             @Nonnull String[] principalNames) {
+        return intersects(asset, READERS, RULES, rules, principalNames);
+    }
+
+    /**
+     * @param folder         the state of a folder
+     * @param rules          the current rules of the folder's managed root
+     * @param principalNames the sorted principal names of the session
+     * @return {@code true} if the folder has a current summary and none of the
+     *         principals can read any asset below it
+     */
+    static boolean isNoneGranted(@Nonnull NodeState folder, @Nonnull AssetMetadataRules rules,
+                                 @Nonnull String[] principalNames) {
+        return Boolean.FALSE.equals(intersects(folder, FOLDER_READERS, FOLDER_RULES, rules, principalNames));
+    }
+
+    /**
+     * @return whether the tag of the asset was computed with the given rules,
+     *         or the asset has no tag if the rules cannot be materialized
+     */
+    static boolean isCurrent(@Nonnull NodeState asset, @Nonnull AssetMetadataRules rules) {
+        PropertyState fingerprint = asset.getProperty(RULES);
+        if (!rules.isMaterializable()) {
+            return fingerprint == null;
+        }
+        return fingerprint != null && fingerprint.getValue(Type.LONG) == rules.getFingerprint();
+    }
+
+    /**
+     * Computes the tag of an asset and writes it, or removes the tag if the
+     * rules cannot be materialized.
+     *
+     * @param builder the builder of the asset node
+     * @param asset   the state to compute the tag from
+     * @param rules   the rules of the asset's managed root
+     * @return whether the tag changed
+     */
+    static boolean write(@Nonnull NodeBuilder builder, @Nonnull NodeState asset, @Nonnull AssetMetadataRules rules) {
+        NodeState metadata = asset.getChildNode(JcrConstants.JCR_CONTENT).getChildNode(DamConstants.METADATA_FOLDER);
+        return write(builder, asset, READERS, RULES, rules.getReaders(metadata::getProperty), rules);
+    }
+
+    /**
+     * Computes the summary of a folder from its direct children, which must
+     * be tagged and summarized already.
+     *
+     * @return the summary, or {@code null} if a child has no current tag or
+     *         summary
+     */
+    @CheckForNull
+    static String[] summarize(@Nonnull NodeState folder, @Nonnull AssetMetadataRules rules) {
+        if (!rules.isMaterializable()) {
+            return null;
+        }
+        Set<String> readers = new TreeSet<>();
+        for (ChildNodeEntry entry : folder.getChildNodeEntries()) {
+            String name = entry.getName();
+            if (NodeStateUtils.isHidden(name) || !AssetLocator.mayContainAssets(name)) {
+                continue;
+            }
+            if (!addReaders(name, entry.getNodeState(), rules, readers)) {
+                return null;
+            }
+        }
+        return toSummary(readers);
+    }
+
+    /**
+     * Adds the tagged or summarized readers of a child to the given set, for
+     * an asset including the summary of its nested content.
+     *
+     * @return {@code false} if the child has no current tag or summary
+     */
+    static boolean addReaders(@Nonnull String name, @Nonnull NodeState child, @Nonnull AssetMetadataRules rules,
+                              @Nonnull Set<String> readers) {
+        if (!AssetLocator.isAsset(name, child)) {
+            return addReaders(child, FOLDER_READERS, FOLDER_RULES, rules, readers);
+        }
+        if (!addReaders(child, READERS, RULES, rules, readers)) {
+            return false;
+        }
+        return (!child.hasProperty(FOLDER_RULES) && !hasNestedContent(child))
+                || addReaders(child, FOLDER_READERS, FOLDER_RULES, rules, readers);
+    }
+
+    /**
+     * @return whether the asset has children besides its {@code jcr:content}
+     *         that may contain assets, which are summarized on the asset
+     */
+    static boolean hasNestedContent(@Nonnull NodeState asset) {
+        for (String name : asset.getChildNodeNames()) {
+            if (!NodeStateUtils.isHidden(name) && AssetLocator.mayContainAssets(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the summarized readers of a folder to the given set.
+     *
+     * @return {@code false} if the folder has no current summary
+     */
+    static boolean addSummary(@Nonnull NodeState folder, @Nonnull AssetMetadataRules rules,
+                              @Nonnull Set<String> readers) {
+        return addReaders(folder, FOLDER_READERS, FOLDER_RULES, rules, readers);
+    }
+
+    private static boolean addReaders(@Nonnull NodeState state, @Nonnull String readersName,
+                                      @Nonnull String rulesName, @Nonnull AssetMetadataRules rules,
+                                      @Nonnull Set<String> readers) {
+        PropertyState fingerprint = state.getProperty(rulesName);
+        PropertyState values = state.getProperty(readersName);
+        if (fingerprint == null || values == null || fingerprint.getValue(Type.LONG) != rules.getFingerprint()) {
+            return false;
+        }
+        for (int i = 0, count = values.count(); i < count; i++) {
+            readers.add(values.getValue(Type.STRING, i));
+        }
+        return true;
+    }
+
+    /**
+     * @param readers the readers of all assets below a folder, {@code null} if
+     *                not all of them are known
+     * @return the summary to store
+     */
+    @CheckForNull
+    static String[] toSummary(@Nullable Set<String> readers) {
+        if (readers == null) {
+            return null;
+        }
+        if (readers.contains(AssetMetadataRules.ANY_PRINCIPAL) || readers.size() > MAX_FOLDER_READERS) {
+            return new String[] { AssetMetadataRules.ANY_PRINCIPAL };
+        }
+        return readers.toArray(new String[0]);
+    }
+
+    /**
+     * Writes the summary of a folder, or removes it if it is {@code null}.
+     *
+     * @param builder the builder of the folder
+     * @param folder  the state of the folder before the write
+     * @return whether the summary changed
+     */
+    static boolean writeSummary(@Nonnull NodeBuilder builder, @Nonnull NodeState folder, @Nullable String[] summary,
+                                @Nonnull AssetMetadataRules rules) {
+        return write(builder, folder, FOLDER_READERS, FOLDER_RULES, summary, rules);
+    }
+
+    private static boolean write(@Nonnull NodeBuilder builder, @Nonnull NodeState state, @Nonnull String readersName,
+                                 @Nonnull String rulesName, @Nullable String[] readers,
+                                 @Nonnull AssetMetadataRules rules) {
+        PropertyState fingerprint = state.getProperty(rulesName);
+        PropertyState current = state.getProperty(readersName);
+        if (readers == null) {
+            if (fingerprint == null && current == null) {
+                return false;
+            }
+            builder.removeProperty(readersName);
+            builder.removeProperty(rulesName);
+            return true;
+        }
+        if (fingerprint != null && current != null && fingerprint.getValue(Type.LONG) == rules.getFingerprint()
+                && Iterables.elementsEqual(Arrays.asList(readers), current.getValue(Type.STRINGS))) {
+            return false;
+        }
+        builder.setProperty(readersName, Arrays.asList(readers), Type.STRINGS);
+        builder.setProperty(rulesName, rules.getFingerprint(), Type.LONG);
+        return true;
+    }
+
+    /**
+     * @return whether the sorted readers stored in the given property share a
+     *         name with the sorted principal names, or {@code null} if the
+     *         readers were not computed with the given rules
+     */
+    @CheckForNull
+    private static Boolean intersects(@Nonnull NodeState state, @Nonnull String readersName,
+                                      @Nonnull String rulesName, @Nonnull AssetMetadataRules rules,
+                                      @Nonnull String[] principalNames) {
+        PropertyState fingerprint = state.getProperty(rulesName);
+        if (fingerprint == null || fingerprint.getValue(Type.LONG) != rules.getFingerprint()) {
+            return null;
+        }
+        PropertyState readers = state.getProperty(readersName);
+        if (readers == null) {
+            return null;
+        }
+        // merge of two sorted arrays
+        int count = readers.count();
+        int i = 0;
+        int j = 0;
+        String reader = count == 0 ? null : readers.getValue(Type.STRING, 0);
+        if (AssetMetadataRules.ANY_PRINCIPAL.equals(reader)) {
+            return true;
+        }
+        while (reader != null && j < principalNames.length) {
+            int cmp = reader.compareTo(principalNames[j]);
+            if (cmp == 0) {
+                return true;
+            } else if (cmp > 0) {
+                j++;
+            } else {
+                reader = ++i < count ? readers.getValue(Type.STRING, i) : null;
+            }
+        }
+        return false;
+    }
+}
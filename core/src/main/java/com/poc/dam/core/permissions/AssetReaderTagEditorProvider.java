@@ -0,0 +1,204 @@
+package com.poc.dam.core.permissions;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.MISSING_NODE;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorProvider;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.DamConstants;
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+/**
+ * Keeps the {@link AssetReaderTag}s of the assets below the managed roots up
+ * to date within the commit that adds an asset or changes its metadata, so a
+ * tag never lags behind the metadata it was computed from. Only active while
+ * reader tags are enabled; {@link AssetReaderTagJob} catches up on the
+ * commits made while they were disabled. Only the subtrees
+ * of the managed roots are diffed, and of an asset only the children besides
+ * its {@code jcr:content}, which may hold nested assets such as subassets.
+ * When the readers below a folder or asset change, the summaries of it and
+ * its ancestors up to the managed root are updated on the way back up:
+ * readers that were only added are merged into the current summary, any
+ * other change recomputes the summary from the direct children.
+ */
+final class AssetReaderTagEditorProvider implements EditorProvider {
+
+    private final Supplier<CompiledConfiguration> configuration;
+
+    AssetReaderTagEditorProvider(@Nonnull Supplier<CompiledConfiguration> configuration) {
+        this.configuration = configuration;
+    }
+
+    @CheckForNull
+    @Override
+    public Editor getRootEditor(NodeState before, NodeState after, NodeBuilder builder, CommitInfo info) {
+        CompiledConfiguration compiled = configuration.get();
+        if (!compiled.isReaderTags()) {
+            return null;
+        }
+        ManagedPathTrie trie = compiled.getManagedPaths();
+        return trie.getManagedRoots().isEmpty() ? null
+                : new TagEditor(null, null, trie.getRootNode(), builder, false);
+    }
+
+    private static final class TagEditor extends DefaultEditor {
+
+        private final TagEditor parent;
+        private final String name;
+        private final Node node;
+        private final NodeBuilder builder;
+        private final boolean asset;
+
+        /**
+         * The readers of children whose readers were only extended, merged
+         * into the current summary of this folder on leave.
+         */
+        private Set<String> added;
+
+        /**
+         * Whether a child lost readers or has none known, so the summary of
+         * this folder has to be recomputed from all of its children.
+         */
+        private boolean rebuild;
+
+        /**
+         * Whether the tag of this asset changed or it just became an asset,
+         * so its folder has to take its readers again on leave.
+         */
+        private boolean changed;
+
+        private TagEditor(@Nullable TagEditor parent, @Nullable String name, @Nonnull Node node,
+                          @Nonnull NodeBuilder builder, boolean asset) {
+            this.parent = parent;
+            this.name = name;
+            this.node = node;
+            this.builder = builder;
+            this.asset = asset;
+        }
+
+        @Override
+        public void leave(NodeState before, NodeState after) {
+            if (!node.isManaged()) {
+                return;
+            }
+            if (rebuild || added != null) {
+                changed |= writeSummary();
+            }
+            if (changed && parent != null) {
+                parent.childChanged(name, before, builder.getNodeState());
+            }
+        }
+
+        /**
+         * @return whether the summary changed
+         */
+        private boolean writeSummary() {
+            AssetMetadataRules rules = node.getRoot().getRules();
+            NodeState folder = builder.getNodeState();
+            String[] summary;
+            Set<String> readers = new TreeSet<>();
+            if (asset && !AssetReaderTag.hasNestedContent(folder)) {
+                // plain assets carry their tag only
+                summary = null;
+            } else if (!rebuild && AssetReaderTag.addSummary(folder, rules, readers)) {
+                // bulk imports only add readers, which keeps each commit independent of the folder size
+                readers.addAll(added);
+                summary = AssetReaderTag.toSummary(readers);
+            } else {
+                summary = AssetReaderTag.summarize(folder, rules);
+            }
+            return AssetReaderTag.writeSummary(builder, folder, summary, rules);
+        }
+
+        @CheckForNull
+        @Override
+        public Editor childNodeAdded(String name, NodeState after) {
+            return childNodeChanged(name, MISSING_NODE, after);
+        }
+
+        @CheckForNull
+        @Override
+        public Editor childNodeChanged(String name, NodeState before, NodeState after) {
+            if (NodeStateUtils.isHidden(name) || !AssetLocator.mayContainAssets(name)) {
+                return null;
+            }
+            Node child = node.getChild(name);
+            if (child == null) {
+                return null;
+            }
+            NodeBuilder childBuilder = builder.getChildNode(name);
+            boolean isAsset = child.isManaged() && AssetLocator.isAsset(name, after);
+            boolean wasAsset = AssetLocator.isAsset(before);
+            TagEditor editor = new TagEditor(this, name, child, childBuilder, isAsset);
+            if (isAsset) {
+                AssetMetadataRules rules = child.getRoot().getRules();
+                if (!AssetReaderTag.isCurrent(after, rules) || !getMetadata(before).equals(getMetadata(after))) {
+                    editor.changed = AssetReaderTag.write(childBuilder, after, rules);
+                }
+                editor.changed |= !wasAsset;
+            }
+            if (!before.exists() || isAsset != wasAsset) {
+                // a new folder or asset has no summary of its children yet
+                editor.rebuild = true;
+            }
+            return editor;
+        }
+
+        @CheckForNull
+        @Override
+        public Editor childNodeDeleted(String name, NodeState before) {
+            if (!NodeStateUtils.isHidden(name) && AssetLocator.mayContainAssets(name)) {
+                Node child = node.getChild(name);
+                rebuild |= child != null && child.isManaged();
+            }
+            return null;
+        }
+
+        /**
+         * Records that the tag or summary of a child changed. Readers that are
+         * only added are merged into the summary of this folder, any other
+         * change recomputes it.
+         */
+        private void childChanged(@Nonnull String childName, @Nonnull NodeState before, @Nonnull NodeState after) {
+            if (!node.isManaged() || rebuild) {
+                return;
+            }
+            AssetMetadataRules rules = node.getRoot().getRules();
+            Set<String> readers = new TreeSet<>();
+            if (!AssetReaderTag.addReaders(childName, after, rules, readers)) {
+                rebuild = true;
+                return;
+            }
+            if (before.exists()) {
+                Set<String> previous = new TreeSet<>();
+                if (!AssetReaderTag.addReaders(childName, before, rules, previous) || !readers.containsAll(previous)) {
+                    rebuild = true;
+                    return;
+                }
+            }
+            if (added == null) {
+                added = new TreeSet<>();
+            }
+            added.addAll(readers);
+        }
+
+        @Nonnull
+        private static NodeState getMetadata(@Nonnull NodeState asset) {
+            return asset.getChildNode(JcrConstants.JCR_CONTENT).getChildNode(DamConstants.METADATA_FOLDER);
+        }
+    }
+}
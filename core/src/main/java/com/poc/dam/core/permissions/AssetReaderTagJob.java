@@ -0,0 +1,208 @@
+package com.poc.dam.core.permissions;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.commit.AnnotatingConflictHandler;
+import org.apache.jackrabbit.oak.plugins.commit.ConflictHook;
+import org.apache.jackrabbit.oak.plugins.commit.ConflictValidatorProvider;
+import org.apache.jackrabbit.oak.spi.commit.CommitHook;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.CompositeHook;
+import org.apache.jackrabbit.oak.spi.commit.EditorHook;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+/**
+ * Writes the {@link AssetReaderTag}s of the existing assets below the managed
+ * roots and the summaries of their folders, for content that was there or
+ * changed while the tags were disabled, or before the rules changed. The
+ * commit hook does not maintain tags while they are disabled, so a tag with
+ * the current rules fingerprint may still be stale: every tag is computed
+ * again, and only tags and summaries that changed are written. Once a run
+ * finishes, read checks trust the tags, see
+ * {@link CompiledConfiguration#isReaderTagsCurrent()}.
+ * An interrupted run is not resumed from where it stopped: the next run scans
+ * all assets again, which only writes what is still missing or stale.
+ * Tags are merged in batches; a batch that conflicts with a concurrent change
+ * is dropped and left to the next run, the assets changed concurrently have
+ * been tagged by {@link AssetReaderTagEditorProvider} already. A managed root
+ * nested in another is tagged with its own rules in its own pass; the
+ * folders above it get no summary, like in {@link AssetReaderTagEditorProvider}.
+ */
+final class AssetReaderTagJob implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AssetReaderTagJob.class);
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final CommitHook CONFLICT_HOOK = new CompositeHook(
+            new ConflictHook(new AnnotatingConflictHandler()),
+            new EditorHook(new ConflictValidatorProvider()));
+
+    private final NodeStore nodeStore;
+    private final CompiledConfiguration configuration;
+    private final AssetMetadataPermissionStats stats;
+
+    private boolean dropped;
+
+    private NodeBuilder rootBuilder;
+    private int pending;
+    private boolean interrupted;
+
+    AssetReaderTagJob(@Nonnull NodeStore nodeStore, @Nonnull CompiledConfiguration configuration,
+                      @Nonnull AssetMetadataPermissionStats stats) {
+        this.nodeStore = nodeStore;
+        this.configuration = configuration;
+        this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+        stats.setReaderTagJobRunning(true);
+        try {
+            for (ManagedRoot managedRoot : configuration.getManagedPaths().getManagedRoots()) {
+                rootBuilder = nodeStore.getRoot().builder();
+                pending = 0;
+                NodeState state = NodeStateUtils.getNode(rootBuilder.getBaseState(), managedRoot.getPath());
+                tag(state, getBuilder(managedRoot.getPath()), getNode(managedRoot.getPath()));
+                if (interrupted) {
+                    LOG.info("Reader tag job interrupted, the next run scans all assets again");
+                    return;
+                }
+                merge();
+            }
+            LOG.info("Reader tag job finished: {} assets scanned, {} tags written", stats.getReaderTagScanCount(),
+                    stats.getReaderTagWriteCount());
+            if (dropped) {
+                LOG.warn("Reader tag job dropped conflicting batches, read checks evaluate metadata until the next run");
+            } else {
+                configuration.setReaderTagsCurrent();
+            }
+        } finally {
+            stats.setReaderTagJobRunning(false);
+        }
+    }
+
+    /**
+     * Tags the assets below a folder and writes the summaries of the folder
+     * and its subfolders, bottom up. Stops at nested managed roots. Also
+     * called for an asset with children besides its {@code jcr:content},
+     * whose summary covers those children only.
+     *
+     * @param node the classification of the folder
+     * @return the summary written for the folder, see
+     *         {@link AssetReaderTag#toSummary}
+     */
+    @CheckForNull
+    private String[] tag(@Nonnull NodeState folder, @Nonnull NodeBuilder builder, @Nonnull Node node) {
+        ManagedRoot managedRoot = node.getRoot();
+        AssetMetadataRules rules = managedRoot.getRules();
+        Set<String> readers = rules.isMaterializable() ? new TreeSet<>() : null;
+        for (ChildNodeEntry entry : folder.getChildNodeEntries()) {
+            if (Thread.currentThread().isInterrupted()) {
+                interrupted = true;
+                return null;
+            }
+            String name = entry.getName();
+            if (NodeStateUtils.isHidden(name) || !AssetLocator.mayContainAssets(name)) {
+                continue;
+            }
+            Node childNode = node.getChild(name);
+            if (childNode == null || childNode.getRoot() != managedRoot) {
+                // tagged in the pass of the nested root
+                readers = null;
+                continue;
+            }
+            NodeState child = entry.getNodeState();
+            NodeBuilder childBuilder = builder.getChildNode(name);
+            if (AssetLocator.isAsset(name, child)) {
+                stats.recordReaderTagScan();
+                if (AssetReaderTag.write(childBuilder, child, rules)) {
+                    written();
+                }
+                if (AssetReaderTag.hasNestedContent(child)) {
+                    // nested assets, e.g. subassets, are summarized on the asset
+                    tag(child, childBuilder, childNode);
+                    if (interrupted) {
+                        return null;
+                    }
+                } else if (AssetReaderTag.writeSummary(childBuilder, child, null, rules)) {
+                    written();
+                }
+                if (readers != null && !AssetReaderTag.addReaders(name, childBuilder.getNodeState(), rules, readers)) {
+                    readers = null;
+                }
+            } else {
+                String[] childSummary = tag(child, childBuilder, childNode);
+                if (interrupted) {
+                    return null;
+                }
+                if (readers != null && childSummary != null) {
+                    Collections.addAll(readers, childSummary);
+                } else {
+                    readers = null;
+                }
+            }
+        }
+        String[] summary = AssetReaderTag.toSummary(readers);
+        if (AssetReaderTag.writeSummary(builder, folder, summary, rules)) {
+            written();
+        }
+        return summary;
+    }
+
+    private void written() {
+        stats.recordReaderTagWrite();
+        if (++pending >= BATCH_SIZE) {
+            // child builders stay connected to the reset root builder
+            merge();
+        }
+    }
+
+    private void merge() {
+        if (pending == 0) {
+            return;
+        }
+        try {
+            nodeStore.merge(rootBuilder, CONFLICT_HOOK, CommitInfo.EMPTY);
+        } catch (CommitFailedException e) {
+            LOG.debug("Dropping a batch of reader tags conflicting with a concurrent change", e);
+            rootBuilder.reset(nodeStore.getRoot());
+            dropped = true;
+        }
+        pending = 0;
+    }
+
+    @Nonnull
+    private Node getNode(@Nonnull String path) {
+        Node node = configuration.getManagedPaths().getRootNode();
+        for (String name : PathUtils.elements(path)) {
+            node = node.getChild(name);
+        }
+        return node;
+    }
+
+    @Nonnull
+    private NodeBuilder getBuilder(@Nonnull String path) {
+        NodeBuilder builder = rootBuilder;
+        for (String name : PathUtils.elements(path)) {
+            builder = builder.getChildNode(name);
+        }
+        return builder;
+    }
+}
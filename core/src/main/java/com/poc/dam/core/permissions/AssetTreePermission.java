@@ -0,0 +1,201 @@
+package com.poc.dam.core.permissions;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.spi.security.authorization.permission.Permissions;
+import org.apache.jackrabbit.oak.spi.security.authorization.permission.TreePermission;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.DamConstants;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Permission of a {@code dam:Asset} and its {@code jcr:content}. The decision
+ * is taken once for the asset and shared by everything below its
+ * {@code jcr:content}. Assets never live inside {@code jcr:content}, so the
+ * content subtree is walked without reading any primary type. Other children
+ * of the asset, e.g. {@code subassets}, are treated like folders and a nested
+ * asset is evaluated on its own, the same as {@link AssetLocator} resolves
+ * them for direct checks. Only read permissions are ever granted.
+ * <p>
+ * Properties masked by the decision are hidden on the asset's
+ * {@code jcr:content/metadata} only, which has its own permission. As the
+ * authorizations are combined with OR, they are only hidden where the default
+ * authorization denies them too, see the {@code rep:glob} entries of the
+ * repoinit. Everything else below the {@code jcr:content} is readable as a
+ * whole if the asset is.
+ */
+class AssetTreePermission extends AbstractAssetMetadataTreePermission {
+
+    private static final int ASSET = 0;
+    private static final int CONTENT = 1;
+    private static final int METADATA = 2;
+    private static final int DESCENDANT = 3;
+
+    private static final String CONTENT_PREFIX = JcrConstants.JCR_CONTENT + '/';
+    private static final String METADATA_PATH = CONTENT_PREFIX + DamConstants.METADATA_FOLDER;
+
+    final ManagedRoot root;
+    private final long decision;
+    private final AssetTreePermission asset;
+    private final int level;
+
+    private AssetTreePermission contentPermission;
+    private AssetTreePermission metadataPermission;
+    private AssetTreePermission descendantPermission;
+
+    /**
+     * @param decision the decision of the asset, see
+     *                 {@link AssetMetadataRules#evaluate}
+     */
+    AssetTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider, long decision,
+                        @Nonnull ManagedRoot root) {
+        this(permissionProvider, decision, root, null, ASSET);
+    }
+
+    /**
+     * @param asset the permission of the asset for a permission inside its
+     *              {@code jcr:content}, {@code null} for the asset itself
+     */
+    private AssetTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider, long decision,
+                                @Nonnull ManagedRoot root, @Nullable AssetTreePermission asset, int level) {
+        super(permissionProvider);
+        this.decision = decision;
+        this.root = root;
+        this.asset = asset == null ? this : asset;
+        this.level = level;
+    }
+
+    /**
+     * @return the decision of the asset
+     */
+    long getDecision() {
+        return asset == this ? decision : asset.getDecision();
+    }
+
+    /**
+     * @return {@code true} if this provider grants access to the asset
+     */
+    final boolean isReadable() {
+        return getDecision() != AssetMetadataRules.DENIED;
+    }
+
+    /**
+     * Permission of a tree below the asset that was not reached through this
+     * permission.
+     *
+     * @param relativePath the path of the tree relative to the asset
+     */
+    @Nonnull
+    final AssetTreePermission getPermission(@Nonnull String relativePath) {
+        // only called for trees that AssetLocator resolved to this asset, i.e. the asset and its content
+        if (JcrConstants.JCR_CONTENT.equals(relativePath)) {
+            return asset.getContentPermission();
+        } else if (METADATA_PATH.equals(relativePath)) {
+            return asset.getMetadataPermission();
+        } else if (relativePath.startsWith(CONTENT_PREFIX)) {
+            return asset.getDescendantPermission();
+        }
+        return asset;
+    }
+
+    @Nonnull
+    @Override
+    public TreePermission getChildPermission(@Nonnull String childName, @Nonnull NodeState childState) {
+        if (isOutOfScope(childName)) {
+            return TreePermission.NO_RECOURSE;
+        }
+        if (asset != this) {
+            return getChildPermission(childName);
+        }
+        if (JcrConstants.JCR_CONTENT.equals(childName)) {
+            return getContentPermission();
+        }
+        if (AssetLocator.isAsset(childState)) {
+            return permissionProvider.getAssetPermission(childState, root);
+        }
+        // not in the asset's content, like for AssetLocator#findAncestorAsset
+        Node folder = root.getInside();
+        return permissionProvider.getFolderPermission(childState, folder,
+                new DamFolderTreePermission(permissionProvider, folder));
+    }
+
+    @Override
+    public boolean canRead() {
+        return isReadable();
+    }
+
+    @Override
+    public boolean canRead(@Nonnull PropertyState property) {
+        return isReadable(property);
+    }
+
+    @Override
+    public boolean canReadAll() {
+        return level == DESCENDANT ? isReadable() : getDecision() == 0;
+    }
+
+    @Override
+    public boolean canReadProperties() {
+        return level == METADATA ? getDecision() == 0 : isReadable();
+    }
+
+    @Override
+    public boolean isGranted(long permissions) {
+        return Permissions.includes(Permissions.READ, permissions) && isReadable();
+    }
+
+    @Override
+    public boolean isGranted(long permissions, @Nonnull PropertyState property) {
+        return Permissions.includes(Permissions.READ, permissions) && isReadable(property);
+    }
+
+    private boolean isReadable(@Nonnull PropertyState property) {
+        long current = getDecision();
+        if (current == AssetMetadataRules.DENIED) {
+            return false;
+        }
+        return level != METADATA || !root.getRules().isMasked(current, property.getName());
+    }
+
+    @Nonnull
+    private AssetTreePermission getContentPermission() {
+        if (contentPermission == null) {
+            contentPermission = new AssetTreePermission(permissionProvider, 0, root, this, CONTENT);
+        }
+        return contentPermission;
+    }
+
+    /**
+     * Child permission inside the content of the asset. The permissions of
+     * the content are created once per asset and shared by all nodes of a
+     * level.
+     */
+    @Nonnull
+    private AssetTreePermission getChildPermission(@Nonnull String childName) {
+        if (level == CONTENT && DamConstants.METADATA_FOLDER.equals(childName)) {
+            return asset.getMetadataPermission();
+        }
+        return asset.getDescendantPermission();
+    }
+
+    @Nonnull
+    private AssetTreePermission getMetadataPermission() {
+        if (metadataPermission == null) {
+            metadataPermission = new AssetTreePermission(permissionProvider, 0, root, this, METADATA);
+        }
+        return metadataPermission;
+    }
+
+    @Nonnull
+    private AssetTreePermission getDescendantPermission() {
+        if (descendantPermission == null) {
+            descendantPermission = new AssetTreePermission(permissionProvider, 0, root, this, DESCENDANT);
+        }
+        return descendantPermission;
+    }
+}
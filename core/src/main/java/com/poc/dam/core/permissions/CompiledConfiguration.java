@@ -0,0 +1,144 @@
+package com.poc.dam.core.permissions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.poc.dam.core.permissions.AssetMetadataAuthorizationConfiguration.Config;
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+
+/**
+ * Immutable snapshot of an {@link AssetMetadataAuthorizationConfiguration}:
+ * the trimmed admin user IDs, the managed roots and rules, and the caches
+ * compiled for them. A modified configuration compiles a new snapshot and
+ * swaps it in; providers keep the snapshot they were created with, so a
+ * session never sees a mix of old and new rules. Caches are not carried over,
+ * their decisions were made under the previous rules.
+ */
+final class CompiledConfiguration {
+
+    static final CompiledConfiguration EMPTY = new CompiledConfiguration(ImmutableSet.of(),
+            ManagedPathTrie.compile(null, null), null, false, null);
+
+    private final Set<String> adminUserIds;
+    private final ManagedPathTrie managedPaths;
+    private final AssetDecisionCache decisionCache;
+    private final boolean readerTags;
+    private final DecisionTracer tracer;
+    private final PrincipalContexts principalContexts;
+    private final SupportedPrivileges supportedPrivileges = new SupportedPrivileges();
+    private final long fingerprint;
+
+    private volatile boolean readerTagsCurrent;
+
+    private CompiledConfiguration(@Nonnull Set<String> adminUserIds, @Nonnull ManagedPathTrie managedPaths,
+                                  @CheckForNull AssetDecisionCache decisionCache, boolean readerTags,
+                                  @CheckForNull DecisionTracer tracer) {
+        this.adminUserIds = adminUserIds;
+        this.managedPaths = managedPaths;
+        this.decisionCache = decisionCache;
+        this.readerTags = readerTags;
+        this.tracer = tracer;
+        this.principalContexts = new PrincipalContexts(PrincipalContexts.DEFAULT_MAX_CONTEXTS, adminUserIds);
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (ManagedRoot managedRoot : managedPaths.getManagedRoots()) {
+            hasher.putString(managedRoot.getPath(), StandardCharsets.UTF_8)
+                    .putLong(managedRoot.getRules().getFingerprint());
+        }
+        this.fingerprint = hasher.hash().asLong();
+    }
+
+    @Nonnull
+    static CompiledConfiguration compile(@Nonnull Config config) {
+        ImmutableSet.Builder<String> adminUserIds = ImmutableSet.builder();
+        for (String adminUserId : StringUtils.split(StringUtils.defaultString(config.adminUserIds()), ',')) {
+            if (StringUtils.isNotBlank(adminUserId)) {
+                adminUserIds.add(adminUserId.trim());
+            }
+        }
+        AssetDecisionCache decisionCache = config.decisionCacheEnabled()
+                ? new AssetDecisionCache(config.decisionCacheSize(), config.decisionCacheTtl())
+                : null;
+        return new CompiledConfiguration(adminUserIds.build(),
+                ManagedPathTrie.compile(config.managedRoots(), config.metadataRules()), decisionCache,
+                config.readerTagsEnabled(), DecisionTracer.create(config.traceBufferSize(), config.traceSampleRate(),
+                        config.tracePathPrefix(), config.tracePrincipalName()));
+    }
+
+    @Nonnull
+    Set<String> getAdminUserIds() {
+        return adminUserIds;
+    }
+
+    @Nonnull
+    ManagedPathTrie getManagedPaths() {
+        return managedPaths;
+    }
+
+    @CheckForNull
+    AssetDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    /**
+     * @return whether reader tags are enabled, so the commit hook maintains
+     *         them and the reader tag job catches up on existing content
+     */
+    boolean isReaderTags() {
+        return readerTags;
+    }
+
+    /**
+     * @return whether reader tags are enabled and the reader tag job brought
+     *         all tags up to date since activation, so read checks can trust
+     *         them; the commit hook does not maintain tags while they are
+     *         disabled
+     */
+    boolean isReaderTagsCurrent() {
+        return readerTags && readerTagsCurrent;
+    }
+
+    void setReaderTagsCurrent() {
+        readerTagsCurrent = true;
+    }
+
+    /**
+     * @return the decision tracer, {@code null} if tracing is disabled
+     */
+    @CheckForNull
+    DecisionTracer getTracer() {
+        return tracer;
+    }
+
+    @Nonnull
+    PrincipalContexts getPrincipalContexts() {
+        return principalContexts;
+    }
+
+    @Nonnull
+    SupportedPrivileges getSupportedPrivileges() {
+        return supportedPrivileges;
+    }
+
+    /**
+     * @return a fingerprint of the managed roots and their rules, which
+     *         identifies the decisions taken with this configuration
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledConfiguration[adminUserIds=" + adminUserIds + ", managedPaths=" + managedPaths
+                + ", decisionCache=" + (decisionCache != null) + ", readerTags=" + readerTags
+                + ", tracer=" + tracer + "]";
+    }
+}
@@ -0,0 +1,41 @@
+package com.poc.dam.core.permissions;
+
+import org.apache.jackrabbit.oak.spi.security.authorization.permission.TreePermission;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Permission of a tree on the path from the repository root to a managed
+ * root, e.g. {@code /} or {@code /content/dam}. Only children leading towards
+ * a managed root stay in scope; all other children are left to other
+ * providers.
+ */
+final class DamAncestorTreePermission extends AbstractAssetMetadataTreePermission {
+
+    private final Node node;
+
+    DamAncestorTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider, @Nonnull Node node) {
+        super(permissionProvider);
+        this.node = node;
+    }
+
+    @Nonnull
+    @Override
+    public TreePermission getChildPermission(@Nonnull String childName, @Nonnull NodeState childState) {
+        Node child = isOutOfScope(childName) ? null : node.getChild(childName);
+        if (child == null) {
+            return TreePermission.NO_RECOURSE;
+        }
+        if (!child.isManaged()) {
+            return new DamAncestorTreePermission(permissionProvider, child);
+        }
+        if (AssetLocator.isAsset(childName, childState)) {
+            return permissionProvider.getAssetPermission(childState, child.getRoot());
+        }
+        return permissionProvider.getFolderPermission(childState, child,
+                new DamFolderTreePermission(permissionProvider, child));
+    }
+}
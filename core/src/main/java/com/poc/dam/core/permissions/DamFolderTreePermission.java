@@ -0,0 +1,41 @@
+package com.poc.dam.core.permissions;
+
+import org.apache.jackrabbit.oak.spi.security.authorization.permission.TreePermission;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.poc.dam.core.permissions.ManagedPathTrie.Node;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Permission of a tree inside a managed root that does not belong to an asset,
+ * i.e. a folder or the {@code jcr:content} of a folder. Folders are never
+ * granted by this provider. Below the deepest level of the path trie every
+ * folder shares the same classification, so walking a folder hierarchy hands
+ * out the same instance and allocates nothing. Folders without readable
+ * assets below them are pruned, see
+ * {@link AssetMetadataPermissionProvider#getFolderPermission}.
+ */
+final class DamFolderTreePermission extends AbstractAssetMetadataTreePermission {
+
+    private final Node node;
+
+    DamFolderTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider, @Nonnull Node node) {
+        super(permissionProvider);
+        this.node = node;
+    }
+
+    @Nonnull
+    @Override
+    public TreePermission getChildPermission(@Nonnull String childName, @Nonnull NodeState childState) {
+        if (isOutOfScope(childName)) {
+            return TreePermission.NO_RECOURSE;
+        }
+        Node child = node.getChild(childName);
+        if (AssetLocator.isAsset(childName, childState)) {
+            return permissionProvider.getAssetPermission(childState, child.getRoot());
+        }
+        return permissionProvider.getFolderPermission(childState, child,
+                child == node ? this : new DamFolderTreePermission(permissionProvider, child));
+    }
+}
@@ -0,0 +1,257 @@
+package com.poc.dam.core.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.poc.dam.core.permissions.AssetMetadataRules.MetadataSource;
+
+/**
+ * Read-only snapshot of an {@link AssetDecisionCache} in a memory-mapped
+ * file, so a restarted instance starts with the decisions of its previous run
+ * without reading them onto the heap. The file is an open addressing table of
+ * fixed-width records keyed by the hashes of the managed root and
+ * {@code jcr:uuid} of the asset and of the principal names, see
+ * {@link PrincipalContext#getFingerprint()}. Each record carries the hash of
+ * the asset's {@code jcr:content/metadata} properties read by the rules, see
+ * {@link #hashMetadata}, and is only used while they are unchanged; a record
+ * without a known metadata hash is never written. The header carries the
+ * fingerprint of the configuration the decisions were taken with; a snapshot
+ * of other rules is not used at all.
+ * <p>
+ * Layout, big endian: a header of magic, version, fingerprint, capacity and
+ * record count, followed by {@code capacity} records of asset hash,
+ * principals hash, metadata hash and decision. A slot with asset hash
+ * {@code 0} is empty. Thread-safe, reads never move the buffer position.
+ */
+final class DecisionSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DecisionSnapshot.class);
+
+    private static final int MAGIC = 0x44414d44;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+    private static final int MIN_CAPACITY = 16;
+
+    private final ByteBuffer buffer;
+    private final int mask;
+
+    private DecisionSnapshot(@Nonnull ByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Maps a snapshot file.
+     *
+     * @param file        the snapshot file
+     * @param fingerprint the fingerprint of the current configuration
+     * @return the snapshot, or {@code null} if there is no valid snapshot of
+     *         the current configuration
+     */
+    @CheckForNull
+    static DecisionSnapshot open(@Nonnull File file, long fingerprint) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                LOG.warn("Ignoring decision snapshot {} of invalid size {}", file, size);
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int capacity = buffer.getInt(16);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || Integer.bitCount(capacity) != 1
+                    || size != HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                LOG.warn("Ignoring invalid decision snapshot {}", file);
+                return null;
+            }
+            if (buffer.getLong(8) != fingerprint) {
+                LOG.info("Ignoring decision snapshot {} of other metadata rules", file);
+                return null;
+            }
+            LOG.info("Mapped decision snapshot {} with {} decisions", file, buffer.getInt(20));
+            return new DecisionSnapshot(buffer, capacity);
+        } catch (IOException e) {
+            LOG.warn("Failed to map decision snapshot {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param principals the principals of the session
+     * @param rootPath   the path of the managed root of the asset
+     * @param assetId    the {@code jcr:uuid} of the asset
+     * @return the record of the asset for the principals, {@code -1} if there
+     *         is none
+     */
+    int find(@Nonnull PrincipalContext principals, @Nonnull String rootPath, @Nonnull String assetId) {
+        long assetHash = hash(rootPath + '\n' + assetId);
+        long principalsHash = principals.getFingerprint();
+        for (int slot = slot(assetHash, principalsHash, mask), probes = 0; probes <= mask;
+             slot = (slot + 1) & mask, probes++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            long recordAsset = buffer.getLong(offset);
+            if (recordAsset == 0) {
+                return -1;
+            }
+            if (recordAsset == assetHash && buffer.getLong(offset + 8) == principalsHash) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param record       a record found by {@link #find}
+     * @param metadataHash the hash of the current metadata of the asset
+     * @return the decision, or {@code null} if it was taken from other
+     *         metadata or the metadata hash is unknown
+     */
+    @CheckForNull
+    Long getDecision(int record, long metadataHash) {
+        return metadataHash != 0 && buffer.getLong(record + 16) == metadataHash ? buffer.getLong(record + 24) : null;
+    }
+
+    /**
+     * Hashes the given properties of the {@code jcr:content/metadata} node of
+     * an asset, which are looked up by name, so the cost does not depend on
+     * the other metadata. Binary values are hashed by their length only.
+     *
+     * @param propertyNames the sorted names of the properties the rules read,
+     *                      see {@link AssetMetadataRules#getPropertyNames()}
+     * @return the non-zero hash
+     */
+    static long hashMetadata(@Nonnull MetadataSource metadata, @Nonnull List<String> propertyNames) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String name : propertyNames) {
+            hasher.putString(name, StandardCharsets.UTF_8);
+            PropertyState property = metadata.getProperty(name);
+            if (property == null) {
+                hasher.putInt(-1);
+                continue;
+            }
+            hasher.putInt(property.getType().tag()).putBoolean(property.isArray());
+            for (int i = 0, count = property.count(); i < count; i++) {
+                if (property.getType().tag() == Type.BINARY.tag()) {
+                    hasher.putLong(property.size(i));
+                } else {
+                    hasher.putString(property.getValue(Type.STRING, i), StandardCharsets.UTF_8).putChar('\n');
+                }
+            }
+        }
+        long hash = hasher.hash().asLong();
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Collects the records of a snapshot and writes them to a new file that
+     * replaces the snapshot file at once.
+     */
+    static final class Writer {
+
+        private final ByteBuffer buffer;
+        private final int mask;
+        private final long fingerprint;
+        private int count;
+
+        /**
+         * @param maxRecords the maximum number of records to write
+         */
+        Writer(int maxRecords, long fingerprint) {
+            // at most half full
+            int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, maxRecords)) << 2);
+            this.buffer = ByteBuffer.allocate(HEADER_SIZE + capacity * RECORD_SIZE);
+            this.mask = capacity - 1;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @param metadataHash the hash of the metadata the decision was taken
+         *                     from, {@code 0} if unknown, which skips the
+         *                     decision
+         */
+        void add(@Nonnull PrincipalContext principals, @Nonnull String rootPath, @Nonnull String assetId,
+                 long metadataHash, long decision) {
+            if (metadataHash == 0 || count > mask / 2) {
+                // unknown metadata cannot be validated; a table at most half full keeps probe sequences short
+                return;
+            }
+            long assetHash = hash(rootPath + '\n' + assetId);
+            long principalsHash = principals.getFingerprint();
+            int slot = slot(assetHash, principalsHash, mask);
+            while (true) {
+                int offset = HEADER_SIZE + slot * RECORD_SIZE;
+                long recordAsset = buffer.getLong(offset);
+                if (recordAsset == 0) {
+                    count++;
+                } else if (recordAsset != assetHash || buffer.getLong(offset + 8) != principalsHash) {
+                    slot = (slot + 1) & mask;
+                    continue;
+                }
+                buffer.putLong(offset, assetHash);
+                buffer.putLong(offset + 8, principalsHash);
+                buffer.putLong(offset + 16, metadataHash);
+                buffer.putLong(offset + 24, decision);
+                return;
+            }
+        }
+
+        /**
+         * Writes a temporary file next to the snapshot file and moves it over
+         * the snapshot file, so readers never see a partial snapshot.
+         */
+        void write(@Nonnull File file) throws IOException {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, fingerprint);
+            buffer.putInt(16, mask + 1);
+            buffer.putInt(20, count);
+            Path target = file.toPath();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Wrote decision snapshot {} with {} decisions", file, count);
+        }
+    }
+
+    private static int slot(long assetHash, long principalsHash, int mask) {
+        return (int) ((assetHash ^ principalsHash * 31) & mask);
+    }
+
+    /**
+     * @return a non-zero hash, as {@code 0} marks an empty slot
+     */
+    private static long hash(@Nonnull String value) {
+        long hash = Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,180 @@
+package com.poc.dam.core.permissions;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+
+/**
+ * Fixed-size ring buffer of sampled asset decisions, for diagnosing access
+ * problems on a live instance without debug logging. Writers claim a slot
+ * with one atomic increment and overwrite the oldest record, so tracing never
+ * blocks and its memory is bounded. Providers whose principals do not pass
+ * the principal filter never see the tracer; for the others an unsampled
+ * decision costs one random number. Decisions taken from a node state have
+ * no path at hand and are recorded by the {@code jcr:uuid} of the asset and
+ * the path of its managed root; a path filter only passes them if it covers
+ * the whole managed root. Thread-safe.
+ */
+final class DecisionTracer {
+
+    private static final String UNKNOWN = "?";
+
+    private final AtomicReferenceArray<Record> records;
+    private final AtomicLong next = new AtomicLong();
+    private final int sampleRate;
+    private final String pathPrefix;
+    private final String principalName;
+
+    private DecisionTracer(int size, int sampleRate, @Nullable String pathPrefix, @Nullable String principalName) {
+        this.records = new AtomicReferenceArray<>(size);
+        this.sampleRate = sampleRate;
+        this.pathPrefix = pathPrefix;
+        this.principalName = principalName;
+    }
+
+    /**
+     * @param size          the number of records kept
+     * @param sampleRate    trace one in this many decisions
+     * @param pathPrefix    only trace assets at or below this path, blank for
+     *                      all assets
+     * @param principalName only trace principal sets with this principal,
+     *                      blank for all principal sets
+     * @return the tracer, or {@code null} if tracing is disabled
+     */
+    @CheckForNull
+    static DecisionTracer create(int size, int sampleRate, @Nullable String pathPrefix,
+                                 @Nullable String principalName) {
+        if (size <= 0 || sampleRate <= 0) {
+            return null;
+        }
+        return new DecisionTracer(size, sampleRate, StringUtils.trimToNull(pathPrefix),
+                StringUtils.trimToNull(principalName));
+    }
+
+    /**
+     * @return whether decisions of the given principals are traced at all
+     */
+    boolean accepts(@Nonnull PrincipalContext principals) {
+        return principalName == null || principals.getPrincipalNames().contains(principalName);
+    }
+
+    /**
+     * @return whether the next decision is sampled
+     */
+    boolean sample() {
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Records a sampled decision, unless its asset does not pass the path
+     * filter.
+     *
+     * @param assetPath  the path of the asset
+     * @param principals the principals of the session
+     * @param decision   the decision, see {@link AssetMetadataRules#evaluate}
+     * @param rule       the first rule matching the asset, if any
+     * @param nanos      the time taken for the decision
+     */
+    void record(@Nonnull String assetPath, @Nonnull PrincipalContext principals, long decision,
+                @Nullable String rule, long nanos) {
+        if (isIncluded(assetPath)) {
+            add(assetPath, principals, decision, rule, nanos);
+        }
+    }
+
+    /**
+     * Same as {@link #record} for a decision taken from a node state, which
+     * only passes the path filter if the filter covers the whole managed
+     * root.
+     *
+     * @param assetId  the {@code jcr:uuid} of the asset, {@code null} if it is
+     *                 not referenceable
+     * @param rootPath the path of the managed root of the asset
+     */
+    void recordById(@Nullable String assetId, @Nonnull String rootPath, @Nonnull PrincipalContext principals,
+                    long decision, @Nullable String rule, long nanos) {
+        if (isIncluded(rootPath)) {
+            add(rootPath + "/[" + (assetId == null ? UNKNOWN : assetId) + ']', principals, decision, rule, nanos);
+        }
+    }
+
+    private boolean isIncluded(@Nonnull String path) {
+        return pathPrefix == null || pathPrefix.equals(path) || PathUtils.isAncestor(pathPrefix, path);
+    }
+
+    private void add(@Nonnull String asset, @Nonnull PrincipalContext principals, long decision,
+                     @Nullable String rule, long nanos) {
+        long sequence = next.getAndIncrement();
+        records.set((int) (sequence % records.length()), new Record(sequence, System.currentTimeMillis(), asset,
+                principals, decision, rule, nanos));
+    }
+
+    /**
+     * @return the recorded decisions, oldest first
+     */
+    @Nonnull
+    List<String> dump() {
+        List<Record> snapshot = new ArrayList<>(records.length());
+        for (int i = 0; i < records.length(); i++) {
+            Record record = records.get(i);
+            if (record != null) {
+                snapshot.add(record);
+            }
+        }
+        snapshot.sort(Comparator.comparingLong(record -> record.sequence));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        List<String> lines = new ArrayList<>(snapshot.size());
+        for (Record record : snapshot) {
+            lines.add(format.format(new Date(record.timestamp)) + ' ' + record);
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return "DecisionTracer[size=" + records.length() + ", sampleRate=" + sampleRate + ", pathPrefix="
+                + pathPrefix + ", principalName=" + principalName + "]";
+    }
+
+    private static final class Record {
+
+        private final long sequence;
+        private final long timestamp;
+        private final String asset;
+        private final PrincipalContext principals;
+        private final long decision;
+        private final String rule;
+        private final long nanos;
+
+        private Record(long sequence, long timestamp, @Nonnull String asset, @Nonnull PrincipalContext principals,
+                       long decision, @Nullable String rule, long nanos) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.asset = asset;
+            this.principals = principals;
+            this.decision = decision;
+            this.rule = rule;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            String result = decision == AssetMetadataRules.DENIED ? "denied"
+                    : decision == 0 ? "granted" : "granted masking 0x" + Long.toHexString(decision);
+            return asset + ' ' + principals + ' ' + result + " rule=" + (rule == null ? "-" : rule) + ' '
+                    + nanos / 1000 + "us";
+        }
+    }
+}
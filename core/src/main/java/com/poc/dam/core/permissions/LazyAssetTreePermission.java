@@ -0,0 +1,35 @@
+package com.poc.dam.core.permissions;
+
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.poc.dam.core.permissions.ManagedPathTrie.ManagedRoot;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Permission of an asset reached through a parent permission. It captures the
+ * state of the asset and takes the decision on the first read check, so
+ * traversals that only pass through the asset, or never read it, do not touch
+ * its metadata. The decision is then shared with the content below, like for
+ * an eagerly decided {@link AssetTreePermission}.
+ */
+final class LazyAssetTreePermission extends AssetTreePermission {
+
+    private NodeState assetState;
+    private long decision;
+
+    LazyAssetTreePermission(@Nonnull AssetMetadataPermissionProvider permissionProvider, @Nonnull NodeState assetState,
+                            @Nonnull ManagedRoot root) {
+        super(permissionProvider, AssetMetadataRules.DENIED, root);
+        this.assetState = assetState;
+    }
+
+    @Override
+    long getDecision() {
+        if (assetState != null) {
+            decision = permissionProvider.getAssetDecision(assetState, root);
+            assetState = null;
+        }
+        return decision;
+    }
+}
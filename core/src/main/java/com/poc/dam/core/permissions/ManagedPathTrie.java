@@ -0,0 +1,251 @@
+package com.poc.dam.core.permissions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable trie of the path segments of the managed roots, compiled from the
+ * {@code managedRoots} and {@code metadataRules} configuration. A tree is
+ * classified from its name and the classification of its parent with a single
+ * map lookup per level:
+ * <ul>
+ * <li>{@code null}: outside of all managed roots</li>
+ * <li>a node without root: an ancestor of a managed root</li>
+ * <li>a node with root: inside the nearest managed root at or above it</li>
+ * </ul>
+ * Rules prefixed with {@code <root path>|} only apply to that root, all other
+ * rules apply to every root.
+ */
+final class ManagedPathTrie {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ManagedPathTrie.class);
+
+    private static final String ROOT_SEPARATOR = "|";
+
+    private final Node rootNode;
+    private final List<ManagedRoot> managedRoots;
+
+    private ManagedPathTrie(@Nonnull Node rootNode, @Nonnull List<ManagedRoot> managedRoots) {
+        this.rootNode = rootNode;
+        this.managedRoots = managedRoots;
+    }
+
+    @Nonnull
+    static ManagedPathTrie compile(@Nullable String[] rootPaths, @Nullable String[] ruleDefinitions) {
+        Map<String, List<String>> rulesByRoot = new LinkedHashMap<>();
+        if (rootPaths != null) {
+            for (String rootPath : rootPaths) {
+                if (StringUtils.isBlank(rootPath)) {
+                    continue;
+                }
+                String path = rootPath.trim();
+                if (!PathUtils.isAbsolute(path) || PathUtils.denotesRoot(path)) {
+                    LOG.error("Ignoring invalid managed root '{}'", rootPath);
+                    continue;
+                }
+                rulesByRoot.put(path, new ArrayList<>());
+            }
+        }
+
+        if (ruleDefinitions != null) {
+            for (String definition : ruleDefinitions) {
+                if (StringUtils.isBlank(definition)) {
+                    continue;
+                }
+                String rule = definition.trim();
+                if (rule.startsWith("/") && rule.contains(ROOT_SEPARATOR)) {
+                    String path = StringUtils.substringBefore(rule, ROOT_SEPARATOR).trim();
+                    List<String> rules = rulesByRoot.get(path);
+                    if (rules == null) {
+                        LOG.error("Ignoring metadata rule '{}' for unknown managed root '{}'", rule, path);
+                    } else {
+                        rules.add(StringUtils.substringAfter(rule, ROOT_SEPARATOR));
+                    }
+                } else {
+                    for (List<String> rules : rulesByRoot.values()) {
+                        rules.add(rule);
+                    }
+                }
+            }
+        }
+
+        List<ManagedRoot> managedRoots = new ArrayList<>(rulesByRoot.size());
+        for (Map.Entry<String, List<String>> entry : rulesByRoot.entrySet()) {
+            managedRoots.add(new ManagedRoot(entry.getKey(),
+                    AssetMetadataRules.compile(entry.getValue().toArray(new String[0]))));
+        }
+        return new ManagedPathTrie(new Builder(null).build(managedRoots), Collections.unmodifiableList(managedRoots));
+    }
+
+    /**
+     * @return the classification of the repository root
+     */
+    @Nonnull
+    Node getRootNode() {
+        return rootNode;
+    }
+
+    /**
+     * Classifies a tree by walking up to the repository root. Used where no
+     * parent classification is at hand; only names are read, no path is built.
+     */
+    @CheckForNull
+    Node classify(@Nonnull Tree tree) {
+        if (tree.isRoot()) {
+            return rootNode;
+        }
+        Node parent = classify(tree.getParent());
+        return parent == null ? null : parent.getChild(tree.getName());
+    }
+
+    @Nonnull
+    Collection<ManagedRoot> getManagedRoots() {
+        return managedRoots;
+    }
+
+    @Nonnull
+    Collection<String> getManagedRootPaths() {
+        List<String> paths = new ArrayList<>(managedRoots.size());
+        for (ManagedRoot managedRoot : managedRoots) {
+            paths.add(managedRoot.getPath());
+        }
+        return paths;
+    }
+
+    @Override
+    public String toString() {
+        return managedRoots.toString();
+    }
+
+    /**
+     * A managed root and the rules deciding on the assets below it.
+     */
+    static final class ManagedRoot {
+
+        private final String path;
+        private final AssetMetadataRules rules;
+        private final Node inside;
+
+        private ManagedRoot(@Nonnull String path, @Nonnull AssetMetadataRules rules) {
+            this.path = path;
+            this.rules = rules;
+            this.inside = new Node(this, Collections.emptyMap());
+        }
+
+        @Nonnull
+        String getPath() {
+            return path;
+        }
+
+        @Nonnull
+        AssetMetadataRules getRules() {
+            return rules;
+        }
+
+        /**
+         * @return the classification of the trees inside this root below the
+         *         deepest level of the trie
+         */
+        @Nonnull
+        Node getInside() {
+            return inside;
+        }
+
+        @Override
+        public String toString() {
+            return path + "=" + rules;
+        }
+    }
+
+    /**
+     * Classification of a tree.
+     */
+    static final class Node {
+
+        private final ManagedRoot root;
+        private final Map<String, Node> children;
+
+        private Node(@Nullable ManagedRoot root, @Nonnull Map<String, Node> children) {
+            this.root = root;
+            this.children = children;
+        }
+
+        /**
+         * @return the nearest managed root at or above, {@code null} for an
+         *         ancestor of a managed root
+         */
+        @CheckForNull
+        ManagedRoot getRoot() {
+            return root;
+        }
+
+        boolean isManaged() {
+            return root != null;
+        }
+
+        /**
+         * @return the classification of the named child, {@code null} if the
+         *         child is outside of all managed roots
+         */
+        @CheckForNull
+        Node getChild(@Nonnull String name) {
+            Node child = children.get(name);
+            if (child != null) {
+                return child;
+            }
+            return root == null ? null : root.inside;
+        }
+    }
+
+    private static final class Builder {
+
+        private final Map<String, Builder> children = new HashMap<>();
+        private ManagedRoot root;
+
+        private Builder(@Nullable ManagedRoot root) {
+            this.root = root;
+        }
+
+        @Nonnull
+        private Node build(@Nonnull List<ManagedRoot> managedRoots) {
+            for (ManagedRoot managedRoot : managedRoots) {
+                Builder builder = this;
+                for (String element : PathUtils.elements(managedRoot.getPath())) {
+                    builder = builder.children.computeIfAbsent(element, name -> new Builder(null));
+                }
+                builder.root = managedRoot;
+            }
+            return toNode(null);
+        }
+
+        @Nonnull
+        private Node toNode(@Nullable ManagedRoot inherited) {
+            ManagedRoot effective = root != null ? root : inherited;
+            if (children.isEmpty() && effective != null) {
+                return effective.inside;
+            }
+            ImmutableMap.Builder<String, Node> nodes = ImmutableMap.builder();
+            for (Map.Entry<String, Builder> entry : children.entrySet()) {
+                nodes.put(entry.getKey(), entry.getValue().toNode(effective));
+            }
+            return new Node(effective, nodes.build());
+        }
+    }
+}
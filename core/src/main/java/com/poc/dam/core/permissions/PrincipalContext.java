@@ -0,0 +1,100 @@
+package com.poc.dam.core.permissions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Immutable, compiled view of one distinct set of principals, interned by
+ * {@link PrincipalContexts} and shared by all permission providers created for
+ * that set. Identity is the interned instance: two contexts are equal only if
+ * they are the same object, and {@link #getId()} is unique among the contexts
+ * of a configuration.
+ */
+final class PrincipalContext {
+
+    private final int id;
+    private final Set<String> principalNames;
+    private final String[] sortedPrincipalNames;
+    private final boolean adminOrSystem;
+    private final long fingerprint;
+
+    private volatile boolean seen;
+
+    PrincipalContext(int id, @Nonnull Set<String> principalNames, @Nonnull String[] sortedPrincipalNames,
+                     boolean adminOrSystem) {
+        this.id = id;
+        this.principalNames = principalNames;
+        this.sortedPrincipalNames = sortedPrincipalNames;
+        this.adminOrSystem = adminOrSystem;
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String name : sortedPrincipalNames) {
+            hasher.putString(name, StandardCharsets.UTF_8).putChar('\n');
+        }
+        long hash = hasher.hash().asLong();
+        this.fingerprint = hash == 0 ? 1 : hash;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * @return the immutable principal names
+     */
+    @Nonnull
+    Set<String> getPrincipalNames() {
+        return principalNames;
+    }
+
+    /**
+     * @return the principal names in natural order, not to be modified
+     */
+    @Nonnull
+    String[] getSortedPrincipalNames() {
+        return sortedPrincipalNames;
+    }
+
+    /**
+     * @return whether the principals are the system principal, an admin
+     *         principal or a configured admin user, which bypass this module
+     */
+    boolean isAdminOrSystem() {
+        return adminOrSystem;
+    }
+
+    /**
+     * @return whether a permission provider was created for these principals
+     */
+    boolean isSeen() {
+        return seen;
+    }
+
+    void setSeen() {
+        if (!seen) {
+            seen = true;
+        }
+    }
+
+    /**
+     * @return a non-zero hash of the principal names that, unlike the id, is
+     *         the same in every run, see {@link DecisionSnapshot}
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "PrincipalContext[" + id + "]" + principalNames;
+    }
+}
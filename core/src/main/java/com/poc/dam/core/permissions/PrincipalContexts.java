@@ -0,0 +1,114 @@
+package com.poc.dam.core.permissions;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.spi.security.principal.AdminPrincipal;
+import org.apache.jackrabbit.oak.spi.security.principal.SystemPrincipal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Interns a {@link PrincipalContext} per distinct set of principal names, so
+ * the many sessions of a publish instance that share a few principal sets
+ * (anonymous, a handful of groups) share one compiled context. Sessions with
+ * their own user principal get their own context; the number of interned
+ * contexts is bounded and the least recently used are dropped. Whether a
+ * principal set bypasses this module depends on the types of its principals,
+ * not only on their names, so it is computed on every call and is part of the
+ * intern key. Thread-safe.
+ */
+final class PrincipalContexts {
+
+    static final int DEFAULT_MAX_CONTEXTS = 1000;
+
+    private final Cache<Key, PrincipalContext> contexts;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Set<String> adminUserIds;
+
+    PrincipalContexts(int maxContexts, @Nonnull Set<String> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+        this.contexts = CacheBuilder.newBuilder()
+                .maximumSize(maxContexts)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * @param principals the principals of a session
+     * @return the interned context of their names and of whether they bypass
+     *         this module
+     */
+    @Nonnull
+    PrincipalContext intern(@Nonnull Set<Principal> principals) {
+        ImmutableSet.Builder<String> names = ImmutableSet.builder();
+        for (Principal principal : principals) {
+            names.add(principal.getName());
+        }
+        Key key = new Key(names.build(), isAdminOrSystem(principals));
+        try {
+            return contexts.get(key, () -> compile(key));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    long size() {
+        return contexts.size();
+    }
+
+    @Nonnull
+    private PrincipalContext compile(@Nonnull Key key) {
+        String[] sorted = key.principalNames.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return new PrincipalContext(nextId.getAndIncrement(), key.principalNames, sorted, key.adminOrSystem);
+    }
+
+    private boolean isAdminOrSystem(@Nonnull Set<Principal> principals) {
+        if (principals.contains(SystemPrincipal.INSTANCE)) {
+            return true;
+        }
+        for (Principal principal : principals) {
+            if (principal instanceof AdminPrincipal || adminUserIds.contains(principal.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Key {
+
+        private final ImmutableSet<String> principalNames;
+        private final boolean adminOrSystem;
+
+        private Key(@Nonnull ImmutableSet<String> principalNames, boolean adminOrSystem) {
+            this.principalNames = principalNames;
+            this.adminOrSystem = adminOrSystem;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(principalNames, adminOrSystem);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return adminOrSystem == other.adminOrSystem && principalNames.equals(other.principalNames);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.poc.dam.core.permissions;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeBits;
+import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeBitsProvider;
+import org.apache.jackrabbit.oak.spi.security.privilege.PrivilegeConstants;
+
+/**
+ * The privilege bits supported for assets below the managed roots, which are
+ * the bits of {@code jcr:read} as nothing else is ever granted, resolved
+ * once per revision of the privilege store. The revision is the
+ * {@code rep:next} counter of {@code /jcr:system/rep:privileges}, which
+ * changes whenever a privilege is registered. Thread-safe.
+ */
+final class SupportedPrivileges {
+
+    private volatile Entry entry;
+
+    /**
+     * @param root a read-only root
+     * @return the immutable bits of {@code jcr:read} in the revision of the root
+     */
+    @Nonnull
+    PrivilegeBits getBits(@Nonnull Root root) {
+        PropertyState next = root.getTree(PrivilegeConstants.PRIVILEGES_PATH).getProperty(PrivilegeConstants.REP_NEXT);
+        long revision = next == null ? 0 : next.getValue(Type.LONG);
+        Entry current = entry;
+        if (current == null || current.revision != revision) {
+            current = new Entry(revision,
+                    new PrivilegeBitsProvider(root).getBits(PrivilegeConstants.JCR_READ).unmodifiable());
+            entry = current;
+        }
+        return current.bits;
+    }
+
+    private static final class Entry {
+
+        private final long revision;
+        private final PrivilegeBits bits;
+
+        private Entry(long revision, @Nonnull PrivilegeBits bits) {
+            this.revision = revision;
+            this.bits = bits;
+        }
+    }
+}
@@ -1,34 +1,24 @@
 package com.poc.dam.core.permissions;
 
-import com.day.cq.commons.jcr.JcrConstants;
 import org.apache.jackrabbit.oak.api.Tree;
-import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
 
+/**
+ * @deprecated use {@link AssetLocator}, which locates assets without building
+ *             paths
+ */
+@Deprecated
 public class Utils {
 
     public static Tree findAncestorAsset(Tree tree) {
-
-        if (isAsset(tree)) {
-            return tree;
-        } else if (tree.getPath().contains(JcrConstants.JCR_CONTENT)) {
-
-            while (!tree.isRoot()) {
-                tree = tree.getParent();
-
-                if (isAsset(tree)) {
-                    return tree;
-                }
-            }
-        }
-        return null;
+        return AssetLocator.findAncestorAsset(tree);
     }
-    
+
     public static boolean isAsset(Tree tree) {
-        
-        if(tree.hasProperty(JcrConstants.JCR_PRIMARYTYPE)) {
-            return "dam:Asset".equals(tree.getProperty(JcrConstants.JCR_PRIMARYTYPE).getValue(Type.STRING));
-        } else {
-            return false;
-        }
+        return AssetLocator.isAsset(tree);
+    }
+
+    public static boolean isAsset(NodeState state) {
+        return AssetLocator.isAsset(state);
     }
 }